@@ -1,38 +1,225 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+import java.util.zip.CRC32C;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
 
 
 class Disk {
-    static byte[][] blocks;
+    static Storage storage;
+    static Bitmap bitmap;
 
-    static final int NUM_BLOCKS = 256;
-    static final int BLOCKS_SIZE = 512;
+    // disk geometry, fixed when the disk is created
+    static int NUM_BLOCKS = 256;
+    static int BLOCKS_SIZE = 512;
 
+    // the file allocation table starts at block 0 and the bitmap follows it
+    static int FAT_BLOCKS = 1;
+    static int BITMAP_START = 1;
+    static int BITMAP_BLOCKS = 1;
+
+    // block pointers are stored as 4-byte little-endian ints
+    static final int POINTER_SIZE = 4;
+
+    // little-endian views over byte arrays
+    static final VarHandle INTS = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    // in-memory disk with the default geometry
     Disk() {
-        blocks = new byte[256][512];
+        this(256, 512, 1);
+    }
+
+    // in-memory disk, lost when the process exits
+    Disk(int numBlocks, int blockSize, int fatBlocks) {
+        this(numBlocks, blockSize, fatBlocks, false);
+    }
+
+    // in-memory disk kept in direct buffers outside the Java heap when offHeap is set
+    Disk(int numBlocks, int blockSize, int fatBlocks, boolean offHeap) {
+        setGeometry(numBlocks, blockSize, fatBlocks);
+        storage = offHeap ? new Storage.Direct() : new Storage.Heap();
+        bitmap = new Bitmap();
+        format();
+    }
+
+    // disk backed by an image file, an existing image is mapped as it is
+    Disk(Path image, int numBlocks, int blockSize, int fatBlocks) throws IOException {
+        this(image, numBlocks, blockSize, fatBlocks, 0);
+    }
+
+    // disk backed by an image file, read through a cache of cacheBlocks blocks instead of mapped when cacheBlocks > 0
+    Disk(Path image, int numBlocks, int blockSize, int fatBlocks, int cacheBlocks) throws IOException {
+        this(image, numBlocks, blockSize, fatBlocks, cacheBlocks, false);
+    }
+
+    // with journal, FAT and bitmap updates go through a write-ahead journal next to the image;
+    // an image that has a journal left from an earlier run always uses it, so it is replayed
+    Disk(Path image, int numBlocks, int blockSize, int fatBlocks, int cacheBlocks, boolean journal) throws IOException {
+        setGeometry(numBlocks, blockSize, fatBlocks);
+        boolean exists = Files.exists(image);
+        if (exists && Files.size(image) != (long) NUM_BLOCKS * BLOCKS_SIZE) {
+            throw new IOException("Disk image " + image + " does not match the disk size.");
+        }
+        storage = cacheBlocks > 0 ? new Storage.Cached(new Storage.Image(image), cacheBlocks) : new Storage.Mapped(image);
+        Path journalFile = image.resolveSibling(image.getFileName() + ".journal");
+        if (journal || Files.exists(journalFile)) {
+            storage = new Storage.Journaled(storage, journalFile);
+        }
+        bitmap = new Bitmap();
+        if (exists) {
+            bitmap.load();
+            if (!bitmap.marksMetadata()) {
+                throw new IOException("Disk image " + image + " was written by an older version that kept one byte per block "
+                        + "in the bitmap, it cannot be opened.");
+            }
+        } else {
+            format();
+        }
+    }
+
+    private static void setGeometry(int numBlocks, int blockSize, int fatBlocks) {
+        int bitmapBlocks = (int) (((long) numBlocks + 8L * blockSize - 1) / (8L * blockSize));
+        if (blockSize < 64 || fatBlocks < 1 || fatBlocks + bitmapBlocks >= numBlocks) {
+            throw new IllegalArgumentException("Invalid disk geometry.");
+        }
+        NUM_BLOCKS = numBlocks;
+        BLOCKS_SIZE = blockSize;
+        FAT_BLOCKS = fatBlocks;
+        BITMAP_START = fatBlocks;
+        BITMAP_BLOCKS = bitmapBlocks;
+    }
+
+    // a frozen copy of an in-memory disk, it shares its blocks until one side writes them
+    static final class Snapshot {
+        final Storage.Heap heap;
+        final int numBlocks;
+        final int blockSize;
+        final int fatBlocks;
+
+        Snapshot(Storage.Heap heap, int numBlocks, int blockSize, int fatBlocks) {
+            this.heap = heap;
+            this.numBlocks = numBlocks;
+            this.blockSize = blockSize;
+            this.fatBlocks = fatBlocks;
+        }
+
+        // forget the snapshot, so the blocks it shared are written in place again
+        void release() {
+            heap.release();
+        }
+    }
+
+    // snapshot of the disk, taken between file system operations; only the table of block chunks is copied
+    static Snapshot snapshot() {
+        if (!(storage instanceof Storage.Heap)) {
+            throw new UnsupportedOperationException("Snapshots need an in-memory disk.");
+        }
+        return new Snapshot(((Storage.Heap) storage).snapshot(), NUM_BLOCKS, BLOCKS_SIZE, FAT_BLOCKS);
+    }
+
+    // replace the disk with a copy of a snapshot, which is left as it is so it can be restored again;
+    // the allocation method has to remount to see the files of the snapshot
+    static void restore(Snapshot snapshot) {
+        Storage current = storage;
+        setGeometry(snapshot.numBlocks, snapshot.blockSize, snapshot.fatBlocks);
+        storage = snapshot.heap.snapshot();
+        if (current instanceof Storage.Heap) {
+            ((Storage.Heap) current).release();
+        }
+        bitmap = new Bitmap();
+        bitmap.load();
+    }
+
+    // first block after the FAT and the bitmap
+    static int firstDataBlock() {
+        return BITMAP_START + BITMAP_BLOCKS;
+    }
+
+    private static void format() {
         // set bitmap
-        blocks[1][0] = 1;
-        blocks[1][1] = 1;
+        for (int i = 0; i < firstDataBlock(); i++) {
+            setUsed(i, true);
+        }
 
         // initial file allocation table
-        byte fillValue = -1;
-        for(int i = 0; i < BLOCKS_SIZE; i++){
-            blocks[0][i] = fillValue;
+        for (int i = 0; i < FAT_BLOCKS; i++) {
+            fill(i, 0, BLOCKS_SIZE, (byte) -1);
         }
     }
 
     public static void write(int blockNumber, byte[] data) {
         if (blockNumber >= 0 && blockNumber < NUM_BLOCKS) {
             if (data.length <= BLOCKS_SIZE) {
-                System.arraycopy(data, 0, blocks[blockNumber], 0, data.length);
+                storage.write(blockNumber, 0, data);
+                Metrics.BLOCKS_WRITTEN.increment();
+                // update bitmap
+                setUsed(blockNumber, true);
+            } else {
+                System.err.println("Not Enough Space.");
+            }
+        } else {
+            System.err.println("Invalid block number.");
+        }
+    }
+
+    public static void write(int blockNumber, ByteBuffer data) {
+        if (blockNumber >= 0 && blockNumber < NUM_BLOCKS) {
+            if (data.remaining() <= BLOCKS_SIZE) {
+                storage.write(blockNumber, 0, data);
+                Metrics.BLOCKS_WRITTEN.increment();
                 // update bitmap
-                blocks[1][blockNumber] = 1;
+                setUsed(blockNumber, true);
             } else {
                 System.err.println("Not Enough Space.");
             }
@@ -41,1011 +228,5535 @@ class Disk {
         }
     }
 
+    // have a journal cover every later change to a block that holds metadata, such as a block of a FAT-mode table
+    static void journal(int blockNumber) {
+        storage.journal(blockNumber);
+    }
+
+    // write a block the metadata depends on, such as a directory node, so a journal covers it
+    static void writeLogged(int blockNumber, byte[] data) {
+        storage.writeLogged(blockNumber, data);
+        Metrics.BLOCKS_WRITTEN.increment();
+        setUsed(blockNumber, true);
+    }
+
     public static byte[] read(int blockNumber) {
+        byte[] data = new byte[BLOCKS_SIZE];
+        read(blockNumber, data);
+        return data;
+    }
+
+    // read a block into an array the caller owns
+    public static void read(int blockNumber, byte[] data) {
         if (blockNumber >= 0 && blockNumber < NUM_BLOCKS) {
-            return Arrays.copyOf(blocks[blockNumber], BLOCKS_SIZE);
+            storage.read(blockNumber, data);
+            Metrics.BLOCKS_READ.increment();
         } else {
             System.err.println("Invalid block number.");
-            return new byte[BLOCKS_SIZE];
         }
     }
-}
 
-class FileSystem {
+    // copy length bytes of a block at offset into a buffer the caller owns, nothing is allocated
+    static void read(int blockNumber, int offset, ByteBuffer dst, int length) {
+        Metrics.BLOCKS_READ.increment();
+        storage.read(blockNumber, offset, dst, length);
+    }
 
-    static abstract class AllocationMethod{
-        public abstract boolean createFile(String name);
+    // write bytes inside a block without touching the bitmap
+    static void put(int blockNumber, int offset, byte[] data) {
+        Metrics.BLOCKS_WRITTEN.increment();
+        storage.write(blockNumber, offset, data);
+    }
 
-        // find file and return its content
-        public abstract void getData(String name);
+    static void put(int blockNumber, int offset, ByteBuffer data) {
+        Metrics.BLOCKS_WRITTEN.increment();
+        storage.write(blockNumber, offset, data);
+    }
 
-        // delete a file
-        public abstract void deleteFile(String name);
+    // read-only view of a block, no data is copied
+    static ByteBuffer view(int blockNumber) {
+        Metrics.BLOCKS_READ.increment();
+        return storage.view(blockNumber);
+    }
 
-        // copy file
-        public abstract void copyFile(String sourceName, String destName);
+    static byte get(int blockNumber, int offset) {
+        return storage.get(blockNumber, offset);
+    }
 
-        // display bitmap
-        public void displayBitmap(){
-            for(int i = 0; i < Disk.NUM_BLOCKS; i++){
-                if(i % 32 == 0){
-                    System.out.println();
-                }
-                System.out.print(Disk.blocks[1][i]);
-            }
-            System.out.println();
+    static void set(int blockNumber, int offset, byte value) {
+        storage.set(blockNumber, offset, value);
+    }
+
+    static int getInt(int blockNumber, int offset) {
+        return storage.getInt(blockNumber, offset);
+    }
+
+    static void putInt(int blockNumber, int offset, int value) {
+        storage.putInt(blockNumber, offset, value);
+    }
+
+    static long getLong(int blockNumber, int offset) {
+        return storage.getLong(blockNumber, offset);
+    }
+
+    static void putLong(int blockNumber, int offset, long value) {
+        storage.putLong(blockNumber, offset, value);
+    }
+
+    // set bytes [from, to) of a block with one write, which a journal logs as one record
+    static void fill(int blockNumber, int from, int to, byte value) {
+        byte[] data = new byte[to - from];
+        if (value != 0) {
+            Arrays.fill(data, value);
         }
+        storage.write(blockNumber, from, data);
+    }
 
-        // display block
-        public void displayBlock(int blockNum){
-            for(int i = 0; i < Disk.BLOCKS_SIZE; i++){
-                if(i % 32 == 0){
-                    System.out.println();
-                }
-                System.out.print(Disk.blocks[blockNum][i]);
-            }
+    static boolean isFree(int blockNumber) {
+        return bitmap.isFree(blockNumber);
+    }
+
+    // give back a block committed metadata may point to, such as a block of a deleted file; it is cleared and freed,
+    // but with a journal it keeps its data and stays out of the free runs until the group that frees it is on disk
+    static void free(int blockNumber) {
+        if (storage.deferFree(blockNumber)) {
+            bitmap.hold(blockNumber);
+        } else {
+            fill(blockNumber, 0, BLOCKS_SIZE, (byte) 0);
+            setUsed(blockNumber, false);
         }
+    }
 
-        // display file allocation table
-        public abstract void displayFAT(byte[] data);
+    // clear a block held by free() and put it back in the free runs
+    static void release(int blockNumber) {
+        fill(blockNumber, 0, BLOCKS_SIZE, (byte) 0);
+        bitmap.release(blockNumber);
     }
 
-    static class Contiguous extends AllocationMethod {
+    static void setUsed(int blockNumber, boolean used) {
+        bitmap.setUsed(blockNumber, used);
+    }
 
-        @Override
-        // create file
-        public boolean createFile(String fileName){
-            try {
-                // set up the file
-                byte[] fileDataBytes = toBytes(fileName); // data
-                byte[] fileSizeBytes = String.valueOf(fileDataBytes.length).getBytes(StandardCharsets.UTF_8);
-                String[] name = fileName.split("\\.");
-                byte[] fileNameBytes = name[0].getBytes(StandardCharsets.UTF_8); // name
-                // calculate the number of blocks
-                int blockNeed = (int) Math.ceil(fileDataBytes.length / 512.0);
-                byte[] fileBlockSize = String.valueOf(blockNeed).getBytes(StandardCharsets.UTF_8); // block size
-                int startBlock = findBlockFree(blockNeed);
-                if (startBlock == -1) {
-                    System.out.println("Not enough space.");
-                    return false;
-                }
-                byte[] fileStartBlock = String.valueOf(startBlock).getBytes(StandardCharsets.UTF_8); // starting block
-                // Combine all the file information
-                byte fillValue = -1;
-                byte[] fileInfor = new byte[17];
-                Arrays.fill(fileInfor, fillValue); // set the fileInfor to null
-                System.arraycopy(fileNameBytes, 0, fileInfor, 0, fileNameBytes.length);
-                System.arraycopy(fileStartBlock, 0, fileInfor, 8, fileStartBlock.length);
-                System.arraycopy(fileBlockSize, 0, fileInfor, 11, fileBlockSize.length);
-                System.arraycopy(fileSizeBytes, 0, fileInfor, 13, fileSizeBytes.length);
-
-                // add file information to FAT
-                System.arraycopy(fileInfor, 0, Disk.blocks[0], findFATFree(17), fileInfor.length);
-
-                // write data file to disk
-                for (int i = 0; i < blockNeed; i++) {
-                    int blockPtr = startBlock + i;
-                    byte[] partitionFile = Arrays.copyOfRange(fileDataBytes, (Disk.BLOCKS_SIZE * i), (Disk.BLOCKS_SIZE * (i + 1)));
-                    Disk.write(blockPtr, partitionFile);
-                }
-                return true;
-            } catch (IOException e){
-                System.err.println("No such file in current directory.");
-            }
+    // keep a block in memory until it is unpinned, only a block cache does anything
+    static void pin(int blockNumber) {
+        storage.pin(blockNumber);
+    }
+
+    static void unpin(int blockNumber) {
+        storage.unpin(blockNumber);
+    }
+
+    // blocks a sequential reader should have loaded ahead of it, 0 when the storage does not prefetch
+    static int prefetchWindow() {
+        return storage.prefetchWindow();
+    }
+
+    // load a block ahead of its use, false for a block number past the disk
+    static boolean prefetch(int blockNumber) {
+        if (blockNumber < 0 || blockNumber >= NUM_BLOCKS) {
             return false;
         }
+        storage.prefetch(blockNumber);
+        return true;
+    }
 
-        @Override
-        // find file and return its content
-        public void getData(String name) {
-            boolean isFound = false;
-            // convert name to bytes
-            byte[] nameBytes = new byte[8];
-            byte fillValue = -1;
-            Arrays.fill(nameBytes, fillValue);
-            byte[] dummy = name.getBytes(StandardCharsets.UTF_8);
-            System.arraycopy(dummy, 0, nameBytes, 0, dummy.length);
-            int startIndex = 0;
-            int blockSize = 0;
-            int dataSize = 0;
-            // Search the FAT and return the file information.
-            for (int i = 0; i < 30; i++) {
-                byte[] parts = Arrays.copyOfRange(Disk.read(0), 17 * i, (17 * (i + 1)));
-                byte[] dummyParts = Arrays.copyOfRange(parts, 0, 8);
-                if (Arrays.equals(nameBytes, dummyParts)) {
-                    dummyParts = Arrays.copyOfRange(parts, 8, 11);
-                    startIndex = bytesToInt(dummyParts);
-                    dummyParts = Arrays.copyOfRange(parts, 11, 13);
-                    blockSize = bytesToInt(dummyParts);
-                    dummyParts = Arrays.copyOfRange(parts, 13, 17);
-                    dataSize = bytesToInt(dummyParts);
-                    isFound = true;
-                    break;
-                }
-            }
-            if(!isFound){
-                System.out.println("File not found!");
-                return;
-            }
-            byte[] dataBytes = new byte[dataSize];
-            int index = 0;
-            for (int i = startIndex; i < (startIndex + blockSize); i++) {
-                if(dataSize > Disk.BLOCKS_SIZE){
-                    System.arraycopy(Disk.read(i), 0,dataBytes, index, Disk.BLOCKS_SIZE);
-                    dataSize -= Disk.BLOCKS_SIZE;
-                    index += Disk.BLOCKS_SIZE;
-                } else {
-                    System.arraycopy(Disk.read(i), 0, dataBytes, index, dataSize);
-                }
+    // keep a hot block cached, e.g. an index block
+    static void keepResident(int blockNumber, boolean resident) {
+        storage.keepResident(blockNumber, resident);
+    }
+
+    // start of a file system operation that changes the disk, called before it takes any lock
+    static void begin() {
+        storage.begin();
+    }
+
+    // end of a file system operation, its metadata changes are committed with the next group
+    static void commit() {
+        storage.commit();
+    }
+
+    // hit and miss counts of the block cache, null without a cache
+    static String cacheStats() {
+        return storage.stats();
+    }
+
+    // write length bytes starting at a block to a channel
+    static void transferTo(int blockNumber, long length, GatheringByteChannel target) throws IOException {
+        Metrics.BLOCKS_READ.add((length + BLOCKS_SIZE - 1) / BLOCKS_SIZE);
+        storage.transferTo(blockNumber, length, target);
+    }
+
+    // push pending changes to the backing store
+    static void flush() {
+        storage.flush();
+    }
+
+    // free space bitmap: one bit per block on disk, mirrored in memory as words of free bits,
+    // all access goes through the bitmap's monitor
+    static class Bitmap {
+        // how findRun picks a run of free blocks
+        static Fit fit = Fit.FIRST;
+
+        final long[] words = new long[(NUM_BLOCKS + 63) / 64];
+        int freeCount = NUM_BLOCKS;
+        final Extents runs = new Extents();
+
+        Bitmap() {
+            Arrays.fill(words, -1L);
+            if (NUM_BLOCKS % 64 != 0) {
+                words[words.length - 1] = (1L << NUM_BLOCKS) - 1;
             }
-            System.out.println(Arrays.toString(dataBytes));
+            runs.add(0, NUM_BLOCKS);
         }
 
-        @Override
-        // delete a file
-        public void deleteFile(String name){
-            boolean isFound = false;
-            // convert name to bytes
-            byte[] nameBytes = new byte[8];
-            byte fillValue = -1;
-            Arrays.fill(nameBytes, fillValue);
-            byte[] dummy = name.getBytes(StandardCharsets.UTF_8);
-            System.arraycopy(dummy, 0, nameBytes, 0, dummy.length);
-            int startIndex = 0;
-            int blockSize = 0;
-            // Search the FAT and return the file information.
-            for (int i = 0; i < 30; i++) {
-                byte[] parts = Arrays.copyOfRange(Disk.read(0), 17 * i, (17 * (i + 1)));
-                byte[] dummyParts = Arrays.copyOfRange(parts, 0, 8);
-                if (Arrays.equals(nameBytes, dummyParts)) {
-                    dummyParts = Arrays.copyOfRange(parts, 8, 11);
-                    startIndex = bytesToInt(dummyParts);
-                    dummyParts = Arrays.copyOfRange(parts, 11, 13);
-                    blockSize = bytesToInt(dummyParts);
-                    // update FAT
-                    for(int j = 17 * i; j < (17 * (i + 1)); j++){
-                        Disk.blocks[0][j] = fillValue;
-                    }
-                    isFound = true;
-                    break;
+        // the FAT and bitmap blocks are always in use, an image whose bitmap was written one byte per block
+        // shows the second of them as free
+        synchronized boolean marksMetadata() {
+            int free = findFree(0);
+            return free == -1 || free >= firstDataBlock();
+        }
+
+        // rebuild the words from the bitmap blocks
+        synchronized void load() {
+            Arrays.fill(words, 0);
+            freeCount = 0;
+            int bitsPerBlock = BLOCKS_SIZE * 8;
+            for (int b = 0; b < BITMAP_BLOCKS; b++) {
+                byte[] data = read(BITMAP_START + b);
+                for (int i = 0; i < BLOCKS_SIZE; i++) {
+                    int first = b * bitsPerBlock + i * 8;
+                    for (int j = 0; j < 8 && first + j < NUM_BLOCKS; j++) {
+                        if ((data[i] & (1 << j)) == 0) {
+                            words[(first + j) >>> 6] |= 1L << (first + j);
+                        }
+                    }
                 }
             }
-            if(!isFound){
-                System.out.println("File not found!");
-                return;
-            }
-            // delete the file data
-            for (int i = 0; i < blockSize; i++){
-                for(int j = 0; j < Disk.BLOCKS_SIZE; j++){
-                    Disk.blocks[startIndex + i][j] = (byte) 0;
-                }
+            for (long word : words) {
+                freeCount += Long.bitCount(word);
             }
-            // update bitmap
-            for (int i = startIndex; i < (startIndex + blockSize); i++){
-                Disk.blocks[1][i] = (byte) 0;
+            runs.clear();
+            int start = findFree(0);
+            while (start != -1) {
+                int end = findUsed(start);
+                runs.add(start, end - start);
+                start = findFree(end);
             }
         }
 
-        @Override
-        // copy file
-        public void copyFile(String sourceName, String destName){
-            boolean isFound = false;
-            // convert name to bytes
-            byte[] nameBytes = new byte[8];
-            byte fillValue = -1;
-            Arrays.fill(nameBytes, fillValue);
-            byte[] dummy = sourceName.getBytes(StandardCharsets.UTF_8);
-            System.arraycopy(dummy, 0, nameBytes, 0, dummy.length);
-            int startIndex = 0;
-            int blockSize = 0;
-            int dataSize = 0;
-            // Search the FAT and return the file information.
-            for (int i = 0; i < 30; i++) {
-                byte[] parts = Arrays.copyOfRange(Disk.read(0), 17 * i, (17 * (i + 1)));
-                byte[] dummyParts = Arrays.copyOfRange(parts, 0, 8);
-                if (Arrays.equals(nameBytes, dummyParts)) {
-                    dummyParts = Arrays.copyOfRange(parts, 8, 11);
-                    startIndex = bytesToInt(dummyParts);
-                    dummyParts = Arrays.copyOfRange(parts, 11, 13);
-                    blockSize = bytesToInt(dummyParts);
-                    dummyParts = Arrays.copyOfRange(parts, 13, 17);
-                    dataSize = bytesToInt(dummyParts);
-                    isFound = true;
-                    break;
-                }
-            }
-            if(!isFound){
-                System.out.println("File not found!");
+        synchronized boolean isFree(int block) {
+            return (words[block >>> 6] & (1L << block)) != 0;
+        }
+
+        synchronized void setUsed(int block, boolean used) {
+            if (isFree(block) == !used) {
                 return;
             }
-            // set up the copy file
-            byte[] copyByte = new byte[dataSize];
-            int index = 0;
-
-            // get the data from disk
-            for(int i = startIndex; i < (startIndex + blockSize); i++){
-                if(dataSize > Disk.BLOCKS_SIZE){
-                    System.arraycopy(Disk.read(i), 0,copyByte, index, Disk.BLOCKS_SIZE);
-                    dataSize -= Disk.BLOCKS_SIZE;
-                    index += Disk.BLOCKS_SIZE;
-                } else {
-                    System.arraycopy(Disk.read(i), 0, copyByte, index, dataSize);
-                }
+            words[block >>> 6] ^= 1L << block;
+            freeCount += used ? -1 : 1;
+            if (used) {
+                runs.use(block, 1);
+            } else {
+                runs.free(block, 1);
             }
+            writeBit(block, used);
+        }
 
-            Path currentDirectory = Paths.get(System.getProperty("user.dir"));
-            Path filePath = currentDirectory.resolve(destName);
-            if(!Files.isRegularFile(filePath)){
-                System.out.println("Error: The destination file must be in the current directory.");
-                return;
+        // mark a block free in the bitmap blocks only, it stays out of the free runs until it is released
+        synchronized void hold(int block) {
+            if (!isFree(block)) {
+                writeBit(block, false);
             }
+        }
 
-            try(FileOutputStream outputStream = new FileOutputStream(destName)) {
-                outputStream.write(copyByte);
-                System.out.println("File copy successfully at: " + filePath);
-            } catch (IOException e) {
-                e.printStackTrace();
+        // put a held block in the free runs, the bitmap blocks already show it free
+        synchronized void release(int block) {
+            if (!isFree(block)) {
+                words[block >>> 6] ^= 1L << block;
+                freeCount++;
+                runs.free(block, 1);
             }
         }
 
-        // convert file to bytes
-        static byte[] toBytes(String fileName) throws IOException {
-            Path path = Paths.get(fileName);
-            return Files.readAllBytes(path);
+        // write the bit of a block through to the bitmap blocks
+        private void writeBit(int block, boolean used) {
+            int bit = block % (BLOCKS_SIZE * 8);
+            int bitmapBlock = BITMAP_START + block / (BLOCKS_SIZE * 8);
+            byte value = get(bitmapBlock, bit >>> 3);
+            set(bitmapBlock, bit >>> 3, (byte) (used ? value | (1 << (bit & 7)) : value & ~(1 << (bit & 7))));
         }
 
-        @Override
-        // display file allocation table
-        public void displayFAT(byte[] data){
-            for(int i = 0; i < 30; i++) {
-                byte[] parts = Arrays.copyOfRange(data, 17 * i, (17 * (i + 1)));
-                if (parts[0] != -1) {
-                    System.out.println(extractName(parts) + " " + extractStartBlock(parts) + " " + extractSize(parts));
-                }
-            }
+        synchronized int numFree() {
+            return freeCount;
         }
 
-        // extract file size from next 2 bytes
-        static String extractSize(byte[] data){
-            byte fillSpace = 32;
-            byte[] fileSize;
-            fileSize = Arrays.copyOfRange(data, 11, 13);
-            for(int i = 0; i < fileSize.length; i++){
-                if(fileSize[i] == -1){
-                    fileSize[i] = fillSpace;
-                }
-            }
-            return new String(fileSize, StandardCharsets.UTF_8);
+        // first free block at or after from, -1 if there is none
+        synchronized int findFree(int from) {
+            return next(from, false);
         }
-    }
 
-    static class Chained extends AllocationMethod{
+        // first used block at or after from, NUM_BLOCKS if there is none
+        synchronized int findUsed(int from) {
+            int block = next(from, true);
+            return block == -1 ? NUM_BLOCKS : block;
+        }
 
-        static int findBlockFree(int start){
-            for(int i = start; i < Disk.NUM_BLOCKS; i++){
-                if(Disk.blocks[1][i] == 0){
-                    return i;
+        private int next(int from, boolean used) {
+            if (from >= NUM_BLOCKS) {
+                return -1;
+            }
+            int w = from >>> 6;
+            long word = (used ? ~words[w] : words[w]) & (-1L << from);
+            while (word == 0) {
+                if (++w == words.length) {
+                    Metrics.ALLOCATOR_STEPS.add(w - (from >>> 6));
+                    return -1;
                 }
+                word = used ? ~words[w] : words[w];
             }
-            return -1;
+            Metrics.ALLOCATOR_STEPS.add(w - (from >>> 6) + 1);
+            int block = (w << 6) + Long.numberOfTrailingZeros(word);
+            return block < NUM_BLOCKS ? block : -1;
         }
 
-        @Override
-        public boolean createFile(String fileName){
-            try {
-                // set up the file
-                byte[] fileDataBytes = toBytes(fileName); // data
-                byte[] fileSizeBytes = String.valueOf(fileDataBytes.length).getBytes(StandardCharsets.UTF_8);
-                String[] name = fileName.split("\\.");
-                byte[] fileNameBytes = name[0].getBytes(StandardCharsets.UTF_8); // name
-                // calculate the number of blocks
-                int blockNeed = (int) Math.ceil(fileDataBytes.length / 509.0);
-                if(blockNeed <= numBlockFree()){
-                    int endBlock = -1;
-                    int countBlock = 0;
-                    int index = 0;
-                    int[] blockArray = new int[blockNeed+1];
-                    blockArray[blockArray.length - 1] = -1; // null pointer for last block.
-                    // find start and end blocks
-                    while(countBlock != blockNeed){
-                        int blocks = findBlockFree(index);
-                        if(blocks != -1){
-                            blockArray[countBlock] = blocks;
-                            countBlock++;
-                            index = blocks+1;
-                        }
-                        if(countBlock == blockNeed){
-                            endBlock = blockArray[countBlock-1];
-                        }
-                    }
-
-                    byte[] fileStartBlock = String.valueOf(blockArray[0]).getBytes(StandardCharsets.UTF_8); // starting block
-                    byte[] fileEndBlock = String.valueOf(endBlock).getBytes(StandardCharsets.UTF_8); // ending block
-                    // Combine all the file information
-                    byte fillValue = -1;
-                    byte[] fileInfor = new byte[18];
-                    Arrays.fill(fileInfor, fillValue); // set the fileInfor to null
-                    System.arraycopy(fileNameBytes, 0, fileInfor, 0, fileNameBytes.length);
-                    System.arraycopy(fileStartBlock, 0, fileInfor, 8, fileStartBlock.length);
-                    System.arraycopy(fileEndBlock, 0, fileInfor, 11, fileEndBlock.length);
-                    System.arraycopy(fileSizeBytes, 0, fileInfor, 14, fileSizeBytes.length);
-                    // add file information to FAT
-                    System.arraycopy(fileInfor, 0, Disk.blocks[0], findFATFree(18), fileInfor.length);
-                    // write data file to disk
-                    for(int i = 0; i < blockNeed; i++){
-                        int currentBlock = blockArray[i];
-                        int nextBlock = blockArray[i+1];
-                        byte[] nextBlockBytes = String.valueOf(nextBlock).getBytes(StandardCharsets.UTF_8);
-                        byte[] dummy = Arrays.copyOfRange(fileDataBytes, ((Disk.BLOCKS_SIZE - 3) * i), ((Disk.BLOCKS_SIZE - 3) * (i + 1)));
-                        byte[] partitionFile = new byte[dummy.length + 3];
-                        Arrays.fill(partitionFile, (byte) 0);
-                        partitionFile = Arrays.copyOfRange(dummy, 0,partitionFile.length);
-                        System.arraycopy(nextBlockBytes, 0, partitionFile, partitionFile.length - nextBlockBytes.length, nextBlockBytes.length);
-                        Disk.write(currentBlock, partitionFile);
-                    }
-                    return true;
-                } else {
-                    System.out.println("Not enough space.");
-                    return false;
-                }
-            } catch (IOException e){
-                e.printStackTrace();
+        // run of length free blocks chosen by the fit policy, -1 if there is none
+        synchronized int findRun(int length) {
+            if (length == 0) {
+                return findFree(0);
             }
-            return false;
+            return runs.find(length, fit);
         }
 
-        @Override
-        public void getData(String name) {
-            boolean isFound = false;
-            // convert name to bytes
-            byte[] nameBytes = new byte[8];
-            byte fillValue = -1;
-            Arrays.fill(nameBytes, fillValue);
-            byte[] dummy = name.getBytes(StandardCharsets.UTF_8);
-            System.arraycopy(dummy, 0, nameBytes, 0, dummy.length);
-            int startIndex = 0;
-            int dataSize = 0;
-            // Search the FAT and return the file information.
-            for (int i = 0; i < 28; i++) {
-                byte[] parts = Arrays.copyOfRange(Disk.read(0), 18 * i, (18 * (i + 1)));
-                byte[] dummyParts = Arrays.copyOfRange(parts, 0, 8);
-                if (Arrays.equals(nameBytes, dummyParts)) {
-                    dummyParts = Arrays.copyOfRange(parts, 8, 11);
-                    startIndex = bytesToInt(dummyParts);
-                    dummyParts = Arrays.copyOfRange(parts,14,18);
-                    dataSize = bytesToInt(dummyParts);
-                    isFound = true;
-                    break;
-                }
-            }
-            if(!isFound){
-                System.out.println("File not found!");
-                return;
-            }
-            byte[] dataBytes = new byte[dataSize];
-            int index = startIndex;
-            int ptr = 0;
-            byte[] nextBlock;
-            while(index != -1){
-                if(dataSize > Disk.BLOCKS_SIZE - 3){
-                    System.arraycopy(Disk.read(index), 0, dataBytes, ptr, Disk.BLOCKS_SIZE - 3);
-                    dataSize -= Disk.BLOCKS_SIZE - 3;
-                    ptr += Disk.BLOCKS_SIZE - 3;
-                } else {
-                    System.arraycopy(Disk.read(index), 0, dataBytes, ptr, dataSize);
-                }
+        // lowest free run of at least length blocks whatever the fit policy, -1 if there is none
+        synchronized int lowestRun(int length) {
+            return runs.find(length, Fit.FIRST);
+        }
 
-                nextBlock = Arrays.copyOfRange(Disk.read(index), Disk.BLOCKS_SIZE - 3, Disk.BLOCKS_SIZE);
-                index = bytesToInt(nextBlock);
-            }
-            System.out.println(Arrays.toString(dataBytes));
+        synchronized int largestRun() {
+            return runs.largest();
         }
 
-        @Override
-        public void deleteFile(String name) {
-            boolean isFound = false;
-            // convert name to bytes
-            byte[] nameBytes = new byte[8];
-            Arrays.fill(nameBytes, (byte) -1);
-            byte[] dummy = name.getBytes(StandardCharsets.UTF_8);
-            System.arraycopy(dummy, 0, nameBytes, 0, dummy.length);
-            int startIndex = 0;
-            // Search the FAT and return the file information.
-            for (int i = 0; i < 28; i++) {
-                byte[] parts = Arrays.copyOfRange(Disk.read(0), 18 * i, (18 * (i + 1)));
-                byte[] dummyParts = Arrays.copyOfRange(parts, 0, 8);
-                if (Arrays.equals(nameBytes, dummyParts)) {
-                    dummyParts = Arrays.copyOfRange(parts, 8, 11);
-                    startIndex = bytesToInt(dummyParts);
-                    // update FAT
-                    for(int j = 18 * i; j < (18 * (i + 1)); j++){
-                        Disk.blocks[0][j] = (byte) -1;
-                    }
-                    isFound = true;
-                    break;
-                }
-            }
-            if(!isFound){
-                System.out.println("File not found!");
-                return;
+        // reserve a run of length free blocks, -1 if there is none
+        synchronized int allocateRun(int length) {
+            Metrics.ALLOCATIONS.increment();
+            int start = findRun(length);
+            for (int i = 0; start != -1 && i < length; i++) {
+                setUsed(start + i, true);
             }
+            return start;
+        }
 
-            int index = startIndex;
-            byte[] nextBlock;
-            while(index != -1){
-                // update bitmap
-                Disk.blocks[1][index] = (byte) 0;
-                // delete the file data
-                for(int i = 0; i < Disk.BLOCKS_SIZE - 3; i++){
-                    Disk.blocks[index][i] = (byte) 0;
-                }
-                nextBlock = Arrays.copyOfRange(Disk.read(index), Disk.BLOCKS_SIZE - 3, Disk.BLOCKS_SIZE);
-                // delete pointer
-                for(int i = (Disk.BLOCKS_SIZE - 3); i < Disk.BLOCKS_SIZE; i++){
-                    Disk.blocks[index][i] = (byte) 0;
-                }
-                index = bytesToInt(nextBlock);
+        // reserve the blocks [start, start + length) if they are all free
+        synchronized boolean allocateAt(int start, int length) {
+            Metrics.ALLOCATIONS.increment();
+            if (start < 0 || (long) start + length > NUM_BLOCKS || findUsed(start) < start + length) {
+                return false;
             }
+            for (int i = 0; i < length; i++) {
+                setUsed(start + i, true);
+            }
+            return true;
         }
 
-        @Override
-        public void copyFile(String sourceName, String destName) {
-            boolean isFound = false;
-            // convert name to bytes
-            byte[] nameBytes = new byte[8];
-            byte fillValue = -1;
-            Arrays.fill(nameBytes, fillValue);
-            byte[] dummy = sourceName.getBytes(StandardCharsets.UTF_8);
-            System.arraycopy(dummy, 0, nameBytes, 0, dummy.length);
-            int startIndex = 0;
-            int blockSize = 0;
-            int dataSize = 0;
-            // Search the FAT and return the file information.
-            for (int i = 0; i < 28; i++) {
-                byte[] parts = Arrays.copyOfRange(Disk.read(0), 18 * i, (18 * (i + 1)));
-                byte[] dummyParts = Arrays.copyOfRange(parts, 0, 8);
-                if (Arrays.equals(nameBytes, dummyParts)) {
-                    dummyParts = Arrays.copyOfRange(parts, 8, 11);
-                    startIndex = bytesToInt(dummyParts);
-                    dummyParts = Arrays.copyOfRange(parts,14,18);
-                    dataSize = bytesToInt(dummyParts);
-                    isFound = true;
-                    break;
-                }
+        // reserve the first free block at or after from, wrapping around, -1 if the disk is full
+        synchronized int allocate(int from) {
+            Metrics.ALLOCATIONS.increment();
+            int block = findFree(from);
+            if (block == -1) {
+                block = findFree(0);
             }
-            if(!isFound){
-                System.out.println("File not found!");
-                return;
+            if (block != -1) {
+                setUsed(block, true);
             }
+            return block;
+        }
+    }
 
-            // get the data from disk
-            byte[] copyByte = new byte[dataSize];
-            int index = startIndex;
-            int ptr = 0;
-            byte[] nextBlock;
-            while(index != -1){
-                if(dataSize > Disk.BLOCKS_SIZE - 3){
-                    System.arraycopy(Disk.blocks[index], 0, copyByte, ptr, Disk.BLOCKS_SIZE - 3);
-                    dataSize -= Disk.BLOCKS_SIZE - 3;
-                    ptr += Disk.BLOCKS_SIZE - 3;
-                } else {
-                    System.arraycopy(Disk.blocks[index], 0, copyByte, ptr, dataSize);
-                }
+    enum Fit { FIRST, BEST, NEXT }
 
-                nextBlock = Arrays.copyOfRange(Disk.blocks[index], Disk.BLOCKS_SIZE - 3, Disk.BLOCKS_SIZE);
-                index = bytesToInt(nextBlock);
-            }
+    // free runs of blocks, ordered by address and by length
+    static class Extents {
+        // start -> length
+        final TreeMap<Integer, Integer> byAddress = new TreeMap<>();
+        // length << 32 | start, so equal lengths are ordered by address
+        final TreeSet<Long> byLength = new TreeSet<>();
+        // where the next next-fit search starts
+        int cursor;
 
-            Path currentDirectory = Paths.get(System.getProperty("user.dir"));
-            Path filePath = currentDirectory.resolve(destName);
-            if(!Files.isRegularFile(filePath)){
-                System.out.println("Error: The destination file must be in the current directory.");
-                return;
-            }
+        static long key(int start, int length) {
+            return (long) length << 32 | start;
+        }
 
-            try(FileOutputStream outputStream = new FileOutputStream(destName)) {
-                outputStream.write(copyByte);
-                System.out.println("File copy successfully at: " + filePath);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        void clear() {
+            byAddress.clear();
+            byLength.clear();
+            cursor = 0;
         }
 
-        @Override
-        public void displayFAT(byte[] data) {
-            for(int i = 0; i < 28; i++) {
-                byte[] parts = Arrays.copyOfRange(data, 18 * i, (18 * (i + 1)));
-                if (parts[0] != -1) {
-                    System.out.println(extractName(parts) + " " + extractStartBlock(parts) + " " + extractEndBlock(parts));
-                }
-            }
+        void add(int start, int length) {
+            byAddress.put(start, length);
+            byLength.add(key(start, length));
         }
 
+        void remove(int start, int length) {
+            byAddress.remove(start);
+            byLength.remove(key(start, length));
+        }
+
+        // return [start, start + length) to the free runs, merging with its neighbours
+        void free(int start, int length) {
+            int end = start + length;
+            Map.Entry<Integer, Integer> before = byAddress.lowerEntry(start);
+            if (before != null && before.getKey() + before.getValue() == start) {
+                remove(before.getKey(), before.getValue());
+                start = before.getKey();
+            }
+            Integer after = byAddress.get(end);
+            if (after != null) {
+                remove(end, after);
+                end += after;
+            }
+            add(start, end - start);
+        }
+
+        // take [start, start + length) out of the free run that holds it
+        void use(int start, int length) {
+            Map.Entry<Integer, Integer> run = byAddress.floorEntry(start);
+            int runStart = run.getKey();
+            int runEnd = runStart + run.getValue();
+            remove(runStart, run.getValue());
+            if (runStart < start) {
+                add(runStart, start - runStart);
+            }
+            if (start + length < runEnd) {
+                add(start + length, runEnd - start - length);
+            }
+        }
+
+        int count() {
+            return byAddress.size();
+        }
+
+        int largest() {
+            return byLength.isEmpty() ? 0 : (int) (byLength.last() >>> 32);
+        }
+
+        // start of a free run of at least length blocks, -1 if there is none
+        int find(int length, Fit fit) {
+            if (largest() < length) {
+                return -1;
+            }
+            switch (fit) {
+                case BEST:
+                    return (int) (byLength.ceiling(key(0, length)) & 0xFFFFFFFFL);
+                case NEXT:
+                    int start = firstFit(byAddress.tailMap(cursor, true), length);
+                    if (start == -1) {
+                        start = firstFit(byAddress.headMap(cursor, false), length);
+                    }
+                    cursor = start + length;
+                    return start;
+                default:
+                    return firstFit(byAddress, length);
+            }
+        }
+
+        private static int firstFit(Map<Integer, Integer> runs, int length) {
+            int steps = 0;
+            for (Map.Entry<Integer, Integer> run : runs.entrySet()) {
+                steps++;
+                if (run.getValue() >= length) {
+                    Metrics.ALLOCATOR_STEPS.add(steps);
+                    return run.getKey();
+                }
+            }
+            Metrics.ALLOCATOR_STEPS.add(steps);
+            return -1;
+        }
     }
 
-    static class Indexed extends AllocationMethod{
+    static abstract class Storage {
+        abstract byte get(int block, int offset);
 
-        @Override
-        public boolean createFile(String fileName) {
-            try {
-                // set up the file
-                byte[] fileDataBytes = toBytes(fileName); // data
-                byte[] fileSizeBytes = String.valueOf(fileDataBytes.length).getBytes(StandardCharsets.UTF_8);
-                String[] name = fileName.split("\\.");
-                byte[] fileNameBytes = name[0].getBytes(StandardCharsets.UTF_8); // name
-                // calculate the number of blocks
-                int blockNeed = (int) Math.ceil(fileDataBytes.length / 512.0);
-                if((blockNeed + 1) <= numBlockFree()){
-                    byte[] index = String.valueOf(findBlockFree(blockNeed)).getBytes(StandardCharsets.UTF_8);
-                    // Combine all the file information
-                    byte fillValue = -1;
-                    byte[] fileInfor = new byte[15];
-                    Arrays.fill(fileInfor, fillValue); // set the fileInfor to null
-                    System.arraycopy(fileNameBytes, 0, fileInfor, 0, fileNameBytes.length);
-                    System.arraycopy(index, 0, fileInfor, 8, index.length);
-                    System.arraycopy(fileSizeBytes, 0, fileInfor, 11, fileSizeBytes.length);
-                    // add file information to FAT
-                    System.arraycopy(fileInfor, 0, Disk.blocks[0], findFATFree(15), fileInfor.length);
-                    int dummyBlock = blockNeed;
-                    byte[] indexBlock = new byte[blockNeed*3];
-                    Disk.write(bytesToInt(index), indexBlock); // reserve indexBlock
-                    // write data file to disk
-                    for(int i = 0; i < blockNeed; i++){
-                        int currentBlock = findBlockFree(dummyBlock);
-                        dummyBlock--;
-                        System.arraycopy(String.valueOf(currentBlock).getBytes(StandardCharsets.UTF_8), 0, indexBlock, i*3, String.valueOf(currentBlock).getBytes(StandardCharsets.UTF_8).length);
-                        byte[] dummy = Arrays.copyOfRange(fileDataBytes, ((Disk.BLOCKS_SIZE) * i), ((Disk.BLOCKS_SIZE) * (i + 1)));
-                        byte[] partitionFile = new byte[dummy.length];
-                        Arrays.fill(partitionFile, (byte) 0);
-                        partitionFile = Arrays.copyOfRange(dummy, 0,partitionFile.length);
-                        Disk.write(currentBlock, partitionFile);
-                    }
-                    Disk.write(bytesToInt(index), indexBlock);
-                    return true;
-                } else {
-                    System.out.println("Not enough space.");
-                    return false;
+        abstract void set(int block, int offset, byte value);
+
+        abstract void read(int block, byte[] data);
+
+        abstract void write(int block, int offset, byte[] data);
+
+        abstract void write(int block, int offset, ByteBuffer data);
+
+        abstract ByteBuffer view(int block);
+
+        // copy length bytes of a block from offset into a buffer the caller owns
+        void read(int block, int offset, ByteBuffer dst, int length) {
+            dst.put(view(block).position(offset).limit(offset + length));
+        }
+
+        int getInt(int block, int offset) {
+            return (get(block, offset) & 0xFF)
+                    | (get(block, offset + 1) & 0xFF) << 8
+                    | (get(block, offset + 2) & 0xFF) << 16
+                    | (get(block, offset + 3) & 0xFF) << 24;
+        }
+
+        void putInt(int block, int offset, int value) {
+            set(block, offset, (byte) value);
+            set(block, offset + 1, (byte) (value >> 8));
+            set(block, offset + 2, (byte) (value >> 16));
+            set(block, offset + 3, (byte) (value >> 24));
+        }
+
+        long getLong(int block, int offset) {
+            return (getInt(block, offset) & 0xFFFFFFFFL) | (long) getInt(block, offset + 4) << 32;
+        }
+
+        void putLong(int block, int offset, long value) {
+            putInt(block, offset, (int) value);
+            putInt(block, offset + 4, (int) (value >>> 32));
+        }
+
+        // copy consecutive blocks to a channel with gathering writes of block views
+        void transferTo(int block, long length, GatheringByteChannel target) throws IOException {
+            ByteBuffer[] views = new ByteBuffer[GATHER];
+            while (length > 0) {
+                int n = 0;
+                while (n < views.length && length > 0) {
+                    ByteBuffer view = view(block++);
+                    view.limit((int) Math.min(length, BLOCKS_SIZE));
+                    length -= view.limit();
+                    views[n++] = view;
                 }
-            } catch (IOException e){
-                e.printStackTrace();
+                writeFully(target, views, n);
+            }
+        }
+
+        // blocks handed to one gathering write
+        static final int GATHER = 64;
+
+        static void writeFully(GatheringByteChannel target, ByteBuffer[] views, int n) throws IOException {
+            while (views[n - 1].hasRemaining()) {
+                target.write(views, 0, n);
             }
+        }
+
+        void pin(int block) {
+        }
+
+        void unpin(int block) {
+        }
+
+        void keepResident(int block, boolean resident) {
+        }
+
+        // blocks worth loading ahead of a sequential reader, 0 when there is nowhere to keep them
+        int prefetchWindow() {
+            return 0;
+        }
+
+        // start loading a block that is about to be read
+        void prefetch(int block) {
+        }
+
+        String stats() {
+            return null;
+        }
+
+        // write a data block the metadata depends on, such as a directory node; a journal logs it with the metadata
+        void writeLogged(int block, byte[] data) {
+            write(block, 0, data);
+        }
+
+        void journal(int block) {
+        }
+
+        void begin() {
+        }
+
+        // take over freeing a block until its metadata change is durable, false to have it freed now
+        boolean deferFree(int block) {
             return false;
         }
 
-        @Override
-        public void getData(String name) {
-            boolean isFound = false;
-            // convert name to bytes
-            byte[] nameBytes = new byte[8];
-            byte fillValue = -1;
-            Arrays.fill(nameBytes, fillValue);
-            byte[] dummy = name.getBytes(StandardCharsets.UTF_8);
-            System.arraycopy(dummy, 0, nameBytes, 0, dummy.length);
-            int indexTable = 0;
-            int dataSize = 0;
-            // Search the FAT and return the file information.
-            for (int i = 0; i < 28; i++) {
-                byte[] parts = Arrays.copyOfRange(Disk.read(0), 15 * i, (15 * (i + 1)));
-                byte[] dummyParts = Arrays.copyOfRange(parts, 0, 8);
-                if (Arrays.equals(nameBytes, dummyParts)) {
-                    dummyParts = Arrays.copyOfRange(parts, 8, 11);
-                    indexTable = bytesToInt(dummyParts);
-                    dummyParts = Arrays.copyOfRange(parts,11,15);
-                    dataSize = bytesToInt(dummyParts);
-                    isFound = true;
-                    break;
+        void commit() {
+        }
+
+        void flush() {
+        }
+
+        // send bytes of a file channel to a target, transferTo may send less than asked and sends nothing past the end
+        static void transfer(FileChannel channel, long position, long length, GatheringByteChannel target) throws IOException {
+            while (length > 0) {
+                long sent = channel.transferTo(position, length, target);
+                if (sent == 0 && position >= channel.size()) {
+                    throw new EOFException("Disk image ends " + length + " bytes before the data sent from it.");
                 }
+                position += sent;
+                length -= sent;
             }
-            if(!isFound){
-                System.out.println("File not found!");
-                return;
+        }
+
+        // blocks kept on the heap, in chunks of the block table; a snapshot shares every chunk with the heap it was
+        // taken from, a shared chunk is copied by whichever side writes to it first, and the blocks of the copy
+        // stay shared until each is written
+        static class Heap extends Storage {
+            // blocks per chunk, one bit each in Chunk.owned
+            static final int CHUNK = 64;
+            final Chunk[] chunks;
+            // blocks copied because they were shared
+            long copies;
+
+            // a piece of the block table, held by one heap or shared by several
+            static final class Chunk {
+                final byte[][] blocks;
+                // heaps holding the chunk, none of them writes it while there is more than one
+                final AtomicInteger holders = new AtomicInteger(1);
+                // bit i is set when block i is in no other chunk and can be written in place
+                long owned;
+
+                Chunk(byte[][] blocks, long owned) {
+                    this.blocks = blocks;
+                    this.owned = owned;
+                }
             }
-            byte[] dataBytes = new byte[dataSize];
-            byte[] partIndex = new byte[3];
-            int numBlocks = (int) Math.ceil(dataSize / 512.0);
-            System.arraycopy(Disk.read(indexTable), 0, partIndex, 0, partIndex.length);
-            int index = bytesToInt(partIndex);
-            int subIndex = 1;
-            int ptr = 0;
-            while(subIndex <= numBlocks){
-                if(dataSize > Disk.BLOCKS_SIZE){
-                    System.arraycopy(Disk.read(index), 0, dataBytes, ptr, Disk.BLOCKS_SIZE);
-                    dataSize -= Disk.BLOCKS_SIZE;
-                    ptr += Disk.BLOCKS_SIZE;
-                } else {
-                    System.arraycopy(Disk.read(index), 0, dataBytes, ptr, dataSize);
+
+            Heap() {
+                chunks = new Chunk[(NUM_BLOCKS + CHUNK - 1) / CHUNK];
+                for (int c = 0; c < chunks.length; c++) {
+                    chunks[c] = new Chunk(new byte[Math.min(CHUNK, NUM_BLOCKS - c * CHUNK)][BLOCKS_SIZE], -1L);
+                }
+            }
+
+            private Heap(Chunk[] chunks) {
+                this.chunks = chunks;
+            }
+
+            // share every chunk with a new heap, only the chunk table is copied; the heap must not be written meanwhile
+            synchronized Heap snapshot() {
+                for (Chunk chunk : chunks) {
+                    chunk.holders.incrementAndGet();
+                }
+                return new Heap(chunks.clone());
+            }
+
+            // stop sharing the chunks of a heap that is no longer used; a chunk the others have not copied yet
+            // is written in place again
+            synchronized void release() {
+                for (Chunk chunk : chunks) {
+                    chunk.holders.decrementAndGet();
+                }
+            }
+
+            private byte[] block(int block) {
+                return chunks[block / CHUNK].blocks[block % CHUNK];
+            }
+
+            // the block to write to, a shared chunk or block is copied first
+            private byte[] writable(int block) {
+                Chunk chunk = chunks[block / CHUNK];
+                if (chunk.holders.get() == 1 && (chunk.owned & 1L << block % CHUNK) != 0) {
+                    return chunk.blocks[block % CHUNK];
+                }
+                return unshare(block);
+            }
+
+            private synchronized byte[] unshare(int block) {
+                Chunk chunk = chunks[block / CHUNK];
+                int i = block % CHUNK;
+                if (chunk.holders.get() > 1) {
+                    // the others keep the chunk; its blocks are now in both, so neither side writes them in place.
+                    // owned is cleared before the count drops, a holder that then finds itself alone sees it
+                    Chunk copy = new Chunk(chunk.blocks.clone(), 0);
+                    chunk.owned = 0;
+                    chunk.holders.decrementAndGet();
+                    chunks[block / CHUNK] = chunk = copy;
+                }
+                if ((chunk.owned & 1L << i) == 0) {
+                    chunk.blocks[i] = chunk.blocks[i].clone();
+                    chunk.owned |= 1L << i;
+                    copies++;
+                }
+                return chunk.blocks[i];
+            }
+
+            String stats() {
+                return copies == 0 ? null : "Snapshots: " + copies + " blocks copied on write";
+            }
+
+            byte get(int block, int offset) {
+                return block(block)[offset];
+            }
+
+            void set(int block, int offset, byte value) {
+                writable(block)[offset] = value;
+            }
+
+            void read(int block, byte[] data) {
+                System.arraycopy(block(block), 0, data, 0, BLOCKS_SIZE);
+            }
+
+            void read(int block, int offset, ByteBuffer dst, int length) {
+                dst.put(block(block), offset, length);
+            }
+
+            void write(int block, int offset, byte[] data) {
+                System.arraycopy(data, 0, writable(block), offset, data.length);
+            }
+
+            void write(int block, int offset, ByteBuffer data) {
+                data.get(writable(block), offset, data.remaining());
+            }
+
+            ByteBuffer view(int block) {
+                return ByteBuffer.wrap(block(block)).asReadOnlyBuffer();
+            }
+
+            int getInt(int block, int offset) {
+                return (int) INTS.get(block(block), offset);
+            }
+
+            void putInt(int block, int offset, int value) {
+                INTS.set(writable(block), offset, value);
+            }
+
+            long getLong(int block, int offset) {
+                return (long) LONGS.get(block(block), offset);
+            }
+
+            void putLong(int block, int offset, long value) {
+                LONGS.set(writable(block), offset, value);
+            }
+        }
+
+        // blocks kept off the Java heap in direct buffers, so a large disk is a few objects the collector never copies;
+        // one buffer is limited to 2 GiB, so the blocks are split in regions
+        static class Direct extends Storage {
+            final ByteBuffer[] regions;
+            final int blocksPerRegion;
+
+            Direct() {
+                this(new ByteBuffer[regionCount()]);
+                for (int i = 0; i < regions.length; i++) {
+                    regions[i] = ByteBuffer.allocateDirect(regionBlocks(i) * BLOCKS_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                }
+            }
+
+            Direct(ByteBuffer[] regions) {
+                this.regions = regions;
+                blocksPerRegion = blocksPerRegion();
+            }
+
+            static int blocksPerRegion() {
+                return Math.max(1, (1 << 30) / BLOCKS_SIZE);
+            }
+
+            static int regionCount() {
+                return (NUM_BLOCKS + blocksPerRegion() - 1) / blocksPerRegion();
+            }
+
+            // blocks in region i, the last one may be short
+            static int regionBlocks(int i) {
+                return Math.min(blocksPerRegion(), NUM_BLOCKS - i * blocksPerRegion());
+            }
+
+            ByteBuffer region(int block) {
+                return regions[block / blocksPerRegion];
+            }
+
+            int position(int block, int offset) {
+                return (block % blocksPerRegion) * BLOCKS_SIZE + offset;
+            }
+
+            byte get(int block, int offset) {
+                return region(block).get(position(block, offset));
+            }
+
+            void set(int block, int offset, byte value) {
+                region(block).put(position(block, offset), value);
+            }
+
+            void read(int block, byte[] data) {
+                region(block).get(position(block, 0), data, 0, BLOCKS_SIZE);
+            }
+
+            void read(int block, int offset, ByteBuffer dst, int length) {
+                dst.put(dst.position(), region(block), position(block, offset), length);
+                dst.position(dst.position() + length);
+            }
+
+            void write(int block, int offset, byte[] data) {
+                region(block).put(position(block, offset), data, 0, data.length);
+            }
+
+            void write(int block, int offset, ByteBuffer data) {
+                region(block).put(position(block, offset), data, data.position(), data.remaining());
+                data.position(data.limit());
+            }
+
+            ByteBuffer view(int block) {
+                return region(block).slice(position(block, 0), BLOCKS_SIZE).asReadOnlyBuffer();
+            }
+
+            int getInt(int block, int offset) {
+                return region(block).getInt(position(block, offset));
+            }
+
+            void putInt(int block, int offset, int value) {
+                region(block).putInt(position(block, offset), value);
+            }
+
+            long getLong(int block, int offset) {
+                return region(block).getLong(position(block, offset));
+            }
+
+            void putLong(int block, int offset, long value) {
+                region(block).putLong(position(block, offset), value);
+            }
+        }
+
+        // blocks served straight from a memory-mapped image file
+        static class Mapped extends Direct {
+            // kept open so exports can be sent straight from the image file
+            final FileChannel channel;
+
+            Mapped(Path path) throws IOException {
+                this(FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+            }
+
+            private Mapped(FileChannel channel) throws IOException {
+                super(map(channel));
+                this.channel = channel;
+            }
+
+            static ByteBuffer[] map(FileChannel channel) throws IOException {
+                ByteBuffer[] regions = new ByteBuffer[regionCount()];
+                for (int i = 0; i < regions.length; i++) {
+                    regions[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                            (long) i * blocksPerRegion() * BLOCKS_SIZE, (long) regionBlocks(i) * BLOCKS_SIZE);
+                    regions[i].order(ByteOrder.LITTLE_ENDIAN);
+                }
+                return regions;
+            }
+
+            int prefetchWindow() {
+                return 32;
+            }
+
+            // touching the block faults its page in
+            void prefetch(int block) {
+                get(block, 0);
+            }
+
+            // mapped pages and the file share the page cache, so the kernel can copy the data
+            void transferTo(int block, long length, GatheringByteChannel target) throws IOException {
+                transfer(channel, (long) block * BLOCKS_SIZE, length, target);
+            }
+
+            void flush() {
+                for (ByteBuffer region : regions) {
+                    ((MappedByteBuffer) region).force();
+                }
+            }
+        }
+
+        // blocks read and written with positional I/O on an image file, meant to sit under a block cache
+        static class Image extends Storage {
+            final FileChannel channel;
+
+            Image(Path path) throws IOException {
+                channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+                long size = (long) NUM_BLOCKS * BLOCKS_SIZE;
+                if (channel.size() < size) {
+                    channel.write(ByteBuffer.allocate(1), size - 1);
+                }
+            }
+
+            long position(int block, int offset) {
+                return (long) block * BLOCKS_SIZE + offset;
+            }
+
+            void read(ByteBuffer data, long position) {
+                try {
+                    long start = position - data.position();
+                    while (data.hasRemaining()) {
+                        if (channel.read(data, start + data.position()) == -1) {
+                            throw new EOFException("Disk image is shorter than the disk.");
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            void write(ByteBuffer data, long position) {
+                try {
+                    long start = position - data.position();
+                    while (data.hasRemaining()) {
+                        channel.write(data, start + data.position());
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            byte get(int block, int offset) {
+                ByteBuffer data = ByteBuffer.allocate(1);
+                read(data, position(block, offset));
+                return data.get(0);
+            }
+
+            void set(int block, int offset, byte value) {
+                write(ByteBuffer.wrap(new byte[]{value}), position(block, offset));
+            }
+
+            void read(int block, byte[] data) {
+                read(ByteBuffer.wrap(data, 0, BLOCKS_SIZE), position(block, 0));
+            }
+
+            void read(int block, int offset, ByteBuffer dst, int length) {
+                int limit = dst.limit();
+                dst.limit(dst.position() + length);
+                read(dst, position(block, offset));
+                dst.limit(limit);
+            }
+
+            void write(int block, int offset, byte[] data) {
+                write(ByteBuffer.wrap(data), position(block, offset));
+            }
+
+            void write(int block, int offset, ByteBuffer data) {
+                write(data, position(block, offset));
+            }
+
+            ByteBuffer view(int block) {
+                byte[] data = new byte[BLOCKS_SIZE];
+                read(block, data);
+                return ByteBuffer.wrap(data).asReadOnlyBuffer();
+            }
+
+            void transferTo(int block, long length, GatheringByteChannel target) throws IOException {
+                transfer(channel, position(block, 0), length, target);
+            }
+
+            void flush() {
+                try {
+                    channel.force(false);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+
+        // a fixed number of block frames in front of another storage, with CLOCK eviction and write-back;
+        // the FAT, the bitmap and blocks marked resident are only evicted when nothing else can be
+        static class Cached extends Storage {
+            final Storage backing;
+            final byte[][] frames;
+            // block held by each frame (-1 when empty), its pin count, dirty and reference bits
+            final int[] frameBlock;
+            final int[] pins;
+            final boolean[] dirty;
+            final boolean[] referenced;
+            // frame holding each block, -1 when it is not cached
+            final int[] frameOf = new int[NUM_BLOCKS];
+            final BitSet resident = new BitSet(NUM_BLOCKS);
+            int hand;
+            long hits;
+            long misses;
+            long evictions;
+            long writeBacks;
+            long prefetches;
+
+            Cached(Storage backing, int capacity) {
+                this.backing = backing;
+                frames = new byte[capacity][BLOCKS_SIZE];
+                frameBlock = new int[capacity];
+                pins = new int[capacity];
+                dirty = new boolean[capacity];
+                referenced = new boolean[capacity];
+                Arrays.fill(frameBlock, -1);
+                Arrays.fill(frameOf, -1);
+            }
+
+            // frame holding a block, loaded on a miss
+            private int frame(int block) {
+                int frame = frameOf[block];
+                if (frame != -1) {
+                    hits++;
+                    referenced[frame] = true;
+                    return frame;
+                }
+                misses++;
+                frame = victim();
+                if (frameBlock[frame] != -1) {
+                    writeBack(frame);
+                    frameOf[frameBlock[frame]] = -1;
+                    evictions++;
+                }
+                backing.read(block, frames[frame]);
+                frameBlock[frame] = block;
+                frameOf[block] = frame;
+                referenced[frame] = true;
+                return frame;
+            }
+
+            // next frame to reuse: an empty frame, else the first unpinned frame the clock hand finds unreferenced
+            private int victim() {
+                for (int step = 0; step < 2 * frames.length; step++) {
+                    int frame = hand;
+                    hand = (hand + 1) % frames.length;
+                    if (frameBlock[frame] == -1) {
+                        return frame;
+                    }
+                    if (pins[frame] > 0 || isResident(frameBlock[frame])) {
+                        continue;
+                    }
+                    if (!referenced[frame]) {
+                        return frame;
+                    }
+                    referenced[frame] = false;
+                }
+                // every frame is pinned or resident, give up a resident one
+                for (int step = 0; step < frames.length; step++) {
+                    int frame = hand;
+                    hand = (hand + 1) % frames.length;
+                    if (pins[frame] == 0) {
+                        return frame;
+                    }
                 }
-                System.arraycopy(Disk.read(indexTable), subIndex * 3, partIndex, 0, partIndex.length);
-                subIndex++;
-                if(subIndex <= numBlocks) {
-                    index = bytesToInt(partIndex);
+                throw new IllegalStateException("Every block in the cache is pinned.");
+            }
+
+            private boolean isResident(int block) {
+                return block < firstDataBlock() || resident.get(block);
+            }
+
+            private void writeBack(int frame) {
+                if (dirty[frame]) {
+                    backing.write(frameBlock[frame], 0, frames[frame]);
+                    dirty[frame] = false;
+                    writeBacks++;
                 }
             }
-            System.out.println(Arrays.toString(dataBytes));
+
+            private int modify(int block) {
+                int frame = frame(block);
+                dirty[frame] = true;
+                return frame;
+            }
+
+            synchronized byte get(int block, int offset) {
+                return frames[frame(block)][offset];
+            }
+
+            synchronized void set(int block, int offset, byte value) {
+                frames[modify(block)][offset] = value;
+            }
+
+            synchronized void read(int block, byte[] data) {
+                System.arraycopy(frames[frame(block)], 0, data, 0, BLOCKS_SIZE);
+            }
+
+            synchronized void read(int block, int offset, ByteBuffer dst, int length) {
+                dst.put(frames[frame(block)], offset, length);
+            }
+
+            synchronized void write(int block, int offset, byte[] data) {
+                System.arraycopy(data, 0, frames[modify(block)], offset, data.length);
+            }
+
+            synchronized void write(int block, int offset, ByteBuffer data) {
+                data.get(frames[modify(block)], offset, data.remaining());
+            }
+
+            // a copy, the frame may be given to another block while the view is still in use
+            synchronized ByteBuffer view(int block) {
+                return ByteBuffer.wrap(frames[frame(block)].clone()).asReadOnlyBuffer();
+            }
+
+            synchronized int getInt(int block, int offset) {
+                return (int) INTS.get(frames[frame(block)], offset);
+            }
+
+            synchronized void putInt(int block, int offset, int value) {
+                INTS.set(frames[modify(block)], offset, value);
+            }
+
+            synchronized long getLong(int block, int offset) {
+                return (long) LONGS.get(frames[frame(block)], offset);
+            }
+
+            synchronized void pin(int block) {
+                pins[frame(block)]++;
+            }
+
+            synchronized void unpin(int block) {
+                int frame = frameOf[block];
+                if (frame != -1 && pins[frame] > 0) {
+                    pins[frame]--;
+                }
+            }
+
+            synchronized void keepResident(int block, boolean resident) {
+                this.resident.set(block, resident);
+            }
+
+            // a quarter of the cache, so blocks loaded ahead are not evicted before they are read
+            int prefetchWindow() {
+                return frames.length / 4;
+            }
+
+            // read the block outside the monitor so the read overlaps other cache work; it is dropped if the block
+            // was loaded meanwhile, or if a write-back happened, which could have made the copy stale
+            void prefetch(int block) {
+                long written;
+                synchronized (this) {
+                    if (frameOf[block] != -1) {
+                        return;
+                    }
+                    written = writeBacks;
+                }
+                byte[] data = new byte[BLOCKS_SIZE];
+                backing.read(block, data);
+                synchronized (this) {
+                    if (frameOf[block] != -1 || writeBacks != written) {
+                        return;
+                    }
+                    int frame = victim();
+                    if (frameBlock[frame] != -1) {
+                        writeBack(frame);
+                        frameOf[frameBlock[frame]] = -1;
+                        evictions++;
+                    }
+                    System.arraycopy(data, 0, frames[frame], 0, BLOCKS_SIZE);
+                    frameBlock[frame] = block;
+                    frameOf[block] = frame;
+                    referenced[frame] = true;
+                    prefetches++;
+                }
+            }
+
+            synchronized String stats() {
+                long total = hits + misses;
+                return "Block cache: " + hits + " hits, " + misses + " misses ("
+                        + (total == 0 ? 0 : hits * 100 / total) + "% hit rate), "
+                        + evictions + " evictions, " + writeBacks + " write-backs, " + prefetches + " prefetched";
+            }
+
+            // write back the cached range first so the backing store is current
+            void transferTo(int block, long length, GatheringByteChannel target) throws IOException {
+                synchronized (this) {
+                    int blocks = (int) ((length + BLOCKS_SIZE - 1) / BLOCKS_SIZE);
+                    for (int b = block; b < block + blocks; b++) {
+                        if (frameOf[b] != -1) {
+                            writeBack(frameOf[b]);
+                        }
+                    }
+                }
+                backing.transferTo(block, length, target);
+            }
+
+            synchronized void flush() {
+                for (int frame = 0; frame < frames.length; frame++) {
+                    if (frameBlock[frame] != -1) {
+                        writeBack(frame);
+                    }
+                }
+                backing.flush();
+            }
+        }
+
+        // FAT and bitmap blocks kept on the heap; every change to them is logged, and groups of operations
+        // are appended to the journal with one fsync, after the data blocks they point to are forced.
+        // a group only ends where no operation is in progress, so it never holds part of one.
+        // the copies in the backing storage are only rewritten at a checkpoint, once the journal is on disk,
+        // so after a crash replaying the journal over them gives the metadata of the last committed group
+        static class Journaled extends Storage {
+            // operations per group, and how long a group may wait for more
+            static final int GROUP_SIZE = 64;
+            static final long GROUP_DELAY_MS = 10;
+            // journal size that triggers a checkpoint
+            static final long CHECKPOINT_BYTES = 4 << 20;
+
+            final Storage backing;
+            final FileChannel journal;
+            // in-memory image of every journaled block: the metadata blocks, and data blocks written with
+            // writeLogged(); a data block stays journaled once it is, so it is never read from two places
+            final byte[][] meta;
+            // records of the open group: block(4) offset(4) length(4) bytes, after an 8-byte frame header
+            ByteBuffer group = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+            int pending;
+            // operations in progress, and the end of the records and the count of the operations that had
+            // finished the last time none was in progress; a group is cut there
+            int active;
+            int sealed = 8;
+            int marked;
+            // set when a full group waits for the operations in progress, new ones wait until it is committed
+            boolean draining;
+            // blocks freed by the records of the open group, the first freedSealed of them by finished operations;
+            // they are released once the group that frees them is on disk, so nothing reuses or clears them before
+            int[] freed = new int[64];
+            int freedCount;
+            int freedSealed;
+            long journalSize;
+            long commits;
+            long groups;
+
+            Journaled(Storage backing, Path path) throws IOException {
+                this.backing = backing;
+                meta = new byte[NUM_BLOCKS][];
+                for (int b = 0; b < firstDataBlock(); b++) {
+                    meta[b] = new byte[BLOCKS_SIZE];
+                    backing.read(b, meta[b]);
+                }
+                journal = FileChannel.open(path, StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+                group.position(8);
+                if (replay() > 0) {
+                    checkpoint();
+                }
+                Thread committer = new Thread(() -> {
+                    while (true) {
+                        try {
+                            Thread.sleep(GROUP_DELAY_MS);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        commitGroup();
+                    }
+                }, "journal-commit");
+                committer.setDaemon(true);
+                committer.start();
+            }
+
+            // apply every complete group of the journal to the metadata, a torn last group is ignored
+            private int replay() throws IOException {
+                ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+                long position = 0;
+                int replayed = 0;
+                while (readFully(header.clear(), position)) {
+                    int length = header.getInt(0);
+                    if (length <= 0 || position + 8 + length > journal.size()) {
+                        break;
+                    }
+                    ByteBuffer records = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+                    readFully(records, position + 8);
+                    CRC32C crc = new CRC32C();
+                    crc.update(records.array());
+                    if ((int) crc.getValue() != header.getInt(4)) {
+                        break;
+                    }
+                    records.flip();
+                    while (records.hasRemaining()) {
+                        int block = records.getInt();
+                        int offset = records.getInt();
+                        int count = records.getInt();
+                        if (meta[block] == null) {
+                            meta[block] = new byte[BLOCKS_SIZE];
+                            backing.read(block, meta[block]);
+                        }
+                        records.get(meta[block], offset, count);
+                    }
+                    position += 8 + length;
+                    replayed++;
+                }
+                return replayed;
+            }
+
+            private boolean readFully(ByteBuffer data, long position) throws IOException {
+                while (data.hasRemaining()) {
+                    if (journal.read(data, position + data.position()) == -1) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            private boolean isMeta(int block) {
+                return meta[block] != null;
+            }
+
+            synchronized void journal(int block) {
+                if (meta[block] == null) {
+                    meta[block] = new byte[BLOCKS_SIZE];
+                    backing.read(block, meta[block]);
+                }
+            }
+
+            synchronized void writeLogged(int block, byte[] data) {
+                if (meta[block] == null) {
+                    meta[block] = new byte[BLOCKS_SIZE];
+                }
+                System.arraycopy(data, 0, meta[block], 0, data.length);
+                log(block, 0, data.length);
+            }
+
+            // log a change that was just made to a metadata block
+            private void log(int block, int offset, int length) {
+                if (group.remaining() < 12 + length) {
+                    ByteBuffer larger = ByteBuffer.allocate(Math.max(2 * group.capacity(), group.position() + 12 + length))
+                            .order(ByteOrder.LITTLE_ENDIAN);
+                    larger.put(group.flip());
+                    group = larger;
+                }
+                group.putInt(block).putInt(offset).putInt(length).put(meta[block], offset, length);
+            }
+
+            byte get(int block, int offset) {
+                if (!isMeta(block)) {
+                    return backing.get(block, offset);
+                }
+                synchronized (this) {
+                    return meta[block][offset];
+                }
+            }
+
+            void set(int block, int offset, byte value) {
+                if (!isMeta(block)) {
+                    backing.set(block, offset, value);
+                    return;
+                }
+                synchronized (this) {
+                    meta[block][offset] = value;
+                    log(block, offset, 1);
+                }
+            }
+
+            void read(int block, byte[] data) {
+                if (!isMeta(block)) {
+                    backing.read(block, data);
+                    return;
+                }
+                synchronized (this) {
+                    System.arraycopy(meta[block], 0, data, 0, BLOCKS_SIZE);
+                }
+            }
+
+            void read(int block, int offset, ByteBuffer dst, int length) {
+                if (!isMeta(block)) {
+                    backing.read(block, offset, dst, length);
+                    return;
+                }
+                synchronized (this) {
+                    dst.put(meta[block], offset, length);
+                }
+            }
+
+            void write(int block, int offset, byte[] data) {
+                if (!isMeta(block)) {
+                    backing.write(block, offset, data);
+                    return;
+                }
+                synchronized (this) {
+                    System.arraycopy(data, 0, meta[block], offset, data.length);
+                    log(block, offset, data.length);
+                }
+            }
+
+            void write(int block, int offset, ByteBuffer data) {
+                if (!isMeta(block)) {
+                    backing.write(block, offset, data);
+                    return;
+                }
+                synchronized (this) {
+                    int length = data.remaining();
+                    data.get(meta[block], offset, length);
+                    log(block, offset, length);
+                }
+            }
+
+            ByteBuffer view(int block) {
+                if (!isMeta(block)) {
+                    return backing.view(block);
+                }
+                synchronized (this) {
+                    return ByteBuffer.wrap(meta[block].clone()).asReadOnlyBuffer();
+                }
+            }
+
+            int getInt(int block, int offset) {
+                if (!isMeta(block)) {
+                    return backing.getInt(block, offset);
+                }
+                synchronized (this) {
+                    return (int) INTS.get(meta[block], offset);
+                }
+            }
+
+            void putInt(int block, int offset, int value) {
+                if (!isMeta(block)) {
+                    backing.putInt(block, offset, value);
+                    return;
+                }
+                synchronized (this) {
+                    INTS.set(meta[block], offset, value);
+                    log(block, offset, 4);
+                }
+            }
+
+            long getLong(int block, int offset) {
+                if (!isMeta(block)) {
+                    return backing.getLong(block, offset);
+                }
+                synchronized (this) {
+                    return (long) LONGS.get(meta[block], offset);
+                }
+            }
+
+            // journaled blocks in the range are sent from their images
+            void transferTo(int block, long length, GatheringByteChannel target) throws IOException {
+                for (int b = block; b < block + (length + BLOCKS_SIZE - 1) / BLOCKS_SIZE; b++) {
+                    if (isMeta(b)) {
+                        super.transferTo(block, length, target);
+                        return;
+                    }
+                }
+                backing.transferTo(block, length, target);
+            }
+
+            void pin(int block) {
+                backing.pin(block);
+            }
+
+            void unpin(int block) {
+                backing.unpin(block);
+            }
+
+            void keepResident(int block, boolean resident) {
+                backing.keepResident(block, resident);
+            }
+
+            int prefetchWindow() {
+                return backing.prefetchWindow();
+            }
+
+            // journaled blocks are always in memory
+            void prefetch(int block) {
+                if (!isMeta(block)) {
+                    backing.prefetch(block);
+                }
+            }
+
+            synchronized String stats() {
+                String journalStats = "Journal: " + commits + " operations in " + groups + " groups";
+                return backing.stats() == null ? journalStats : backing.stats() + "\n" + journalStats;
+            }
+
+            synchronized void begin() {
+                boolean interrupted = false;
+                while (draining) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                active++;
+            }
+
+            synchronized boolean deferFree(int block) {
+                if (freedCount == freed.length) {
+                    freed = Arrays.copyOf(freed, 2 * freedCount);
+                }
+                freed[freedCount++] = block;
+                return true;
+            }
+
+            // an operation that freed blocks has its group committed as soon as no operation is in progress,
+            // so the blocks come back for the next one
+            void commit() {
+                int[] released = null;
+                synchronized (this) {
+                    commits++;
+                    pending++;
+                    if (active > 0) {
+                        active--;
+                    }
+                    if (active == 0) {
+                        sealed = group.position();
+                        marked = pending;
+                        freedSealed = freedCount;
+                        if (draining || pending >= GROUP_SIZE || freedSealed > 0) {
+                            released = writeGroup();
+                        }
+                    } else if (pending >= GROUP_SIZE || freedCount > 0) {
+                        draining = true;
+                    }
+                }
+                release(released);
+            }
+
+            void commitGroup() {
+                release(writeGroup());
+            }
+
+            // blocks are released outside the monitor, the bitmap's is taken before this one
+            private static void release(int[] blocks) {
+                if (blocks != null) {
+                    for (int block : blocks) {
+                        Disk.release(block);
+                    }
+                }
+            }
+
+            // append the records of the finished operations to the journal and sync it once for all of them,
+            // the records of the operations in progress stay for the next group; returns the blocks it frees
+            private synchronized int[] writeGroup() {
+                int end = sealed;
+                pending -= marked;
+                marked = 0;
+                sealed = 8;
+                int[] released = Arrays.copyOf(freed, freedSealed);
+                System.arraycopy(freed, freedSealed, freed, 0, freedCount - freedSealed);
+                freedCount -= freedSealed;
+                freedSealed = 0;
+                if (draining && active == 0) {
+                    draining = false;
+                    notifyAll();
+                }
+                if (end == 8) {
+                    return released;
+                }
+                try {
+                    // the data blocks the new metadata points to must be on disk first
+                    backing.flush();
+                    int open = group.position();
+                    group.position(end).flip();
+                    CRC32C crc = new CRC32C();
+                    crc.update(group.array(), 8, end - 8);
+                    group.putInt(0, end - 8).putInt(4, (int) crc.getValue());
+                    while (group.hasRemaining()) {
+                        journalSize += journal.write(group, journalSize);
+                    }
+                    journal.force(false);
+                    groups++;
+                    System.arraycopy(group.array(), end, group.array(), 8, open - end);
+                    group.clear().position(8 + open - end);
+                    // the copies in place may only take the metadata of finished operations
+                    if (journalSize > CHECKPOINT_BYTES && group.position() == 8) {
+                        checkpoint();
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return released;
+            }
+
+            // end the group here, with the operations in progress in it
+            private synchronized int[] sealAll() {
+                sealed = group.position();
+                marked = pending;
+                freedSealed = freedCount;
+                return writeGroup();
+            }
+
+            // write the metadata back in place and empty the journal
+            private void checkpoint() throws IOException {
+                for (int b = 0; b < meta.length; b++) {
+                    if (meta[b] != null) {
+                        backing.write(b, 0, meta[b]);
+                    }
+                }
+                backing.flush();
+                journal.truncate(0);
+                journal.force(false);
+                journalSize = 0;
+            }
+
+            // the freed blocks are cleared before the metadata is written back in place
+            void flush() {
+                release(sealAll());
+                synchronized (this) {
+                    sealAll();
+                    try {
+                        checkpoint();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            }
+        }
+    }
+}
+
+// counters, latency histograms and gauges of the file system, always on: a record is a few atomic adds;
+// they are published as the JMX MBean FileAllocation:type=Metrics and can be dumped as text
+class Metrics {
+    static final Histogram CREATE = new Histogram();
+    static final Histogram READ = new Histogram();
+    static final Histogram DELETE = new Histogram();
+    static final Histogram COPY = new Histogram();
+
+    static final LongAdder BLOCKS_READ = new LongAdder();
+    static final LongAdder BLOCKS_WRITTEN = new LongAdder();
+    // FAT entries and directory blocks looked at by lookups and free entry searches
+    static final LongAdder FAT_PROBES = new LongAdder();
+    // bitmap words and free runs looked at by the allocator
+    static final LongAdder ALLOCATOR_STEPS = new LongAdder();
+    static final LongAdder ALLOCATIONS = new LongAdder();
+
+    // latencies in nanoseconds with SUB buckets per power of two, so a value is kept within 1/SUB of itself, HdrHistogram style
+    static class Histogram {
+        static final int SUB_BITS = 4;
+        static final int SUB = 1 << SUB_BITS;
+
+        final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS + 1) << SUB_BITS);
+        final LongAdder count = new LongAdder();
+        final LongAdder sum = new LongAdder();
+        final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            nanos = Math.max(0, nanos);
+            counts.incrementAndGet(index(nanos));
+            count.increment();
+            sum.add(nanos);
+            if (nanos > max.get()) {
+                max.accumulateAndGet(nanos, Math::max);
+            }
+        }
+
+        // values below SUB get a bucket each, above it the top SUB_BITS bits after the leading one pick the bucket
+        static int index(long value) {
+            if (value < SUB) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            return (exponent - SUB_BITS + 1) << SUB_BITS | (int) (value >>> (exponent - SUB_BITS)) & (SUB - 1);
+        }
+
+        // smallest value that falls in a bucket
+        static long lowest(int index) {
+            if (index < SUB) {
+                return index;
+            }
+            int exponent = (index >>> SUB_BITS) + SUB_BITS - 1;
+            return (long) (index & (SUB - 1) | SUB) << (exponent - SUB_BITS);
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        double mean() {
+            long n = count.sum();
+            return n == 0 ? 0 : (double) sum.sum() / n;
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        // value at a percentile, 0 when nothing has been recorded
+        long percentile(double percent) {
+            long n = count.sum();
+            long rank = Math.max(1, (long) Math.ceil(percent / 100 * n));
+            long seen = 0;
+            for (int i = 0; i < counts.length() && n > 0; i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return lowest(i);
+                }
+            }
+            return 0;
+        }
+
+        String summary() {
+            return String.format("%d ops, mean %.1f us, p50 %.1f us, p99 %.1f us, max %.1f us",
+                    count(), mean() / 1e3, percentile(50) / 1e3, percentile(99) / 1e3, max() / 1e3);
+        }
+    }
+
+    // share of the free blocks outside the largest free run, in percent
+    static double freeFragmentation() {
+        int free = Disk.bitmap.numFree();
+        return free == 0 ? 0.0 : 100.0 * (free - Disk.bitmap.largestRun()) / free;
+    }
+
+    static String dump() {
+        return "create: " + CREATE.summary() + "\n"
+                + "read: " + READ.summary() + "\n"
+                + "delete: " + DELETE.summary() + "\n"
+                + "copy: " + COPY.summary() + "\n"
+                + "blocks read " + BLOCKS_READ.sum() + ", blocks written " + BLOCKS_WRITTEN.sum()
+                + ", FAT probes " + FAT_PROBES.sum() + ", allocations " + ALLOCATIONS.sum()
+                + ", allocator steps " + ALLOCATOR_STEPS.sum() + "\n"
+                + String.format("free blocks %d, largest free run %d, free space %.1f%% fragmented",
+                        Disk.bitmap.numFree(), Disk.bitmap.largestRun(), freeFragmentation());
+    }
+
+    // publish the metrics to the platform MBean server
+    static void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(), new ObjectName("FileAllocation:type=Metrics"));
+        } catch (JMException e) {
+            System.err.println("Could not register the metrics MBean: " + e.getMessage());
+        }
+    }
+
+    // print the metrics to standard error every period seconds
+    static void dumpEvery(int seconds) {
+        Thread dumper = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(seconds * 1000L);
+                    System.err.println(dump());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "metrics-dump");
+        dumper.setDaemon(true);
+        dumper.start();
+    }
+
+    // read-only attributes read when asked for, plus a dump operation
+    static class MBean implements DynamicMBean {
+        final Map<String, Supplier<Object>> attributes = new LinkedHashMap<>();
+
+        MBean() {
+            histogram("Create", CREATE);
+            histogram("Read", READ);
+            histogram("Delete", DELETE);
+            histogram("Copy", COPY);
+            attributes.put("BlocksRead", BLOCKS_READ::sum);
+            attributes.put("BlocksWritten", BLOCKS_WRITTEN::sum);
+            attributes.put("FatProbes", FAT_PROBES::sum);
+            attributes.put("Allocations", ALLOCATIONS::sum);
+            attributes.put("AllocatorSteps", ALLOCATOR_STEPS::sum);
+            attributes.put("FreeBlocks", () -> (long) Disk.bitmap.numFree());
+            attributes.put("LargestFreeRun", () -> (long) Disk.bitmap.largestRun());
+            attributes.put("FreeSpaceFragmentation", Metrics::freeFragmentation);
+        }
+
+        void histogram(String name, Histogram histogram) {
+            attributes.put(name + "Count", histogram::count);
+            attributes.put(name + "MeanNanos", histogram::mean);
+            attributes.put(name + "P50Nanos", () -> histogram.percentile(50));
+            attributes.put(name + "P99Nanos", () -> histogram.percentile(99));
+            attributes.put(name + "MaxNanos", histogram::max);
+        }
+
+        public Object getAttribute(String name) throws AttributeNotFoundException {
+            Supplier<Object> attribute = attributes.get(name);
+            if (attribute == null) {
+                throw new AttributeNotFoundException(name);
+            }
+            return attribute.get();
+        }
+
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+        }
+
+        public AttributeList getAttributes(String[] names) {
+            AttributeList list = new AttributeList();
+            for (String name : names) {
+                if (attributes.containsKey(name)) {
+                    list.add(new Attribute(name, attributes.get(name).get()));
+                }
+            }
+            return list;
+        }
+
+        public AttributeList setAttributes(AttributeList list) {
+            return new AttributeList();
+        }
+
+        public Object invoke(String action, Object[] params, String[] signature) {
+            if (action.equals("dump")) {
+                return dump();
+            }
+            throw new UnsupportedOperationException(action);
+        }
+
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> infos = new ArrayList<>();
+            for (Map.Entry<String, Supplier<Object>> attribute : attributes.entrySet()) {
+                String type = attribute.getValue().get() instanceof Double ? "double" : "long";
+                infos.add(new MBeanAttributeInfo(attribute.getKey(), type, attribute.getKey(), true, false, false));
+            }
+            MBeanOperationInfo dump = new MBeanOperationInfo("dump", "All metrics as text", null, "java.lang.String", MBeanOperationInfo.INFO);
+            return new MBeanInfo(Metrics.class.getName(), "File system metrics", infos.toArray(new MBeanAttributeInfo[0]),
+                    null, new MBeanOperationInfo[] {dump}, null);
+        }
+    }
+}
+
+class FileSystem {
+
+    static abstract class AllocationMethod{
+        // FAT entry: name(8) block pointers(4 each) size(8), little-endian; a free entry starts with -1;
+        // version 2 added indirect blocks to the indexed layout, version 3 moved the names into directories
+        // and keeps only the first 8 bytes of the name in the entry, version 4 dropped the version byte
+        // that began every entry, the name tells a used entry from a free one
+        static final byte FAT_VERSION = 4;
+
+        // number of block pointers in an entry
+        final int pointers;
+        // size of one FAT entry, entries in one FAT block and in the whole FAT
+        final int entrySize;
+        final int entriesPerBlock;
+        final int maxEntries;
+        // every FAT slot below this one is in use, a search for a free slot starts here
+        int freeHint;
+
+        // directories on the disk: path -> FAT address (block * BLOCKS_SIZE + offset) of the file's entry
+        final DirectoryTree directory = new DirectoryTree();
+
+        // reusable buffer for imports, holds one block of file data
+        final ThreadLocal<ByteBuffer> buffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(Disk.BLOCKS_SIZE));
+
+        // striped file locks: readers of a file share its lock, create and delete hold it exclusively
+        static final int STRIPES = 64;
+        final ReadWriteLock[] locks = new ReadWriteLock[STRIPES];
+
+        AllocationMethod(int pointers){
+            this.pointers = pointers;
+            this.entrySize = 8 + Disk.POINTER_SIZE * pointers + 8;
+            this.entriesPerBlock = Disk.BLOCKS_SIZE / entrySize;
+            this.maxEntries = entriesPerBlock * Disk.FAT_BLOCKS;
+            for(int i = 0; i < STRIPES; i++){
+                locks[i] = new ReentrantReadWriteLock();
+            }
+            mount();
+        }
+
+        // lock guarding a file name, every spelling of a path takes the same one
+        ReadWriteLock lockFor(String name){
+            return locks[stripe(name)];
+        }
+
+        static int stripe(String name){
+            return Math.floorMod(canonical(name).hashCode(), STRIPES);
+        }
+
+        // a path as the directories resolve it: no leading, trailing or doubled slashes
+        static String canonical(String path){
+            if(!path.startsWith("/") && !path.endsWith("/") && !path.contains("//")){
+                return path;
+            }
+            StringBuilder canonical = new StringBuilder();
+            for(String name : path.split("/")){
+                if(!name.isEmpty()){
+                    canonical.append(canonical.length() == 0 ? "" : "/").append(name);
+                }
+            }
+            return canonical.toString();
+        }
+
+        // the name a host file is stored under, its path without the extension
+        static String nameOf(String fileName){
+            return canonical(fileName.split("\\.")[0]);
+        }
+
+        // load the directory again after the disk under it changed, e.g. a snapshot was restored
+        public void remount(){
+            mount();
+        }
+
+        // find the root directory, bringing an older FAT up to date first
+        void mount(){
+            freeHint = 0;
+            // slot 0 holds the format header: a 0 byte then the version
+            byte version = Disk.get(0, 1);
+            if(Disk.get(0, 0) != 0 || version < 1 || version > FAT_VERSION){
+                migrate();
+                return;
+            }
+            directory.mount();
+            if(version != FAT_VERSION){
+                upgrade();
+            }
+        }
+
+        // bring a version 1 to 3 FAT up to the current version: their entries began with a version byte, so they
+        // are packed into the smaller slots and the directories pointed at the new addresses; then version 1
+        // entries get their blocks rewritten, and the files of versions 1 and 2 are added to the root directory
+        // under the names kept in their entries
+        void upgrade(){
+            int legacySize = entrySize + 1;
+            List<byte[]> legacy = new ArrayList<>();
+            List<Integer> addresses = new ArrayList<>();
+            byte[] fat = new byte[Disk.BLOCKS_SIZE];
+            for(int b = 0; b < Disk.FAT_BLOCKS; b++){
+                Disk.read(b, fat);
+                for(int i = 0; i < Disk.BLOCKS_SIZE / legacySize; i++){
+                    int offset = legacySize * i;
+                    if(fat[offset] >= 1 && fat[offset] <= 3){
+                        legacy.add(Arrays.copyOfRange(fat, offset, offset + legacySize));
+                        addresses.add(b * Disk.BLOCKS_SIZE + offset);
+                    }
+                }
+            }
+            // the format header in front of slot 0 stays
+            Disk.fill(0, DirectoryTree.ROOT + 4, Disk.BLOCKS_SIZE, (byte) -1);
+            for(int b = 1; b < Disk.FAT_BLOCKS; b++){
+                Disk.fill(b, 0, Disk.BLOCKS_SIZE, (byte) -1);
+            }
+            Map<Integer, Integer> moved = new HashMap<>();
+            for(int i = 0; i < legacy.size(); i++){
+                int entry = entryAddress(i + 1);
+                Disk.put(entry / Disk.BLOCKS_SIZE, entry % Disk.BLOCKS_SIZE, Arrays.copyOfRange(legacy.get(i), 1, legacySize));
+                moved.put(addresses.get(i), entry);
+            }
+            directory.renumber(directory.root, moved);
+            for(int i = 0; i < legacy.size(); i++){
+                byte version = legacy.get(i)[0];
+                int entry = entryAddress(i + 1);
+                if(version < 3 && ((version == 1 && !upgradeEntry(entry))
+                        || !directory.insert(extractName(legacy.get(i), 1).trim(), entry, DirectoryTree.FILE))){
+                    throw new IllegalStateException("The file allocation table cannot be upgraded, the disk is full.");
+                }
+            }
+            Disk.set(0, 1, FAT_VERSION);
+            if(!legacy.isEmpty()){
+                System.out.println("Upgraded " + legacy.size() + " files to FAT version " + FAT_VERSION + ".");
+            }
+        }
+
+        // a used entry starts with its name; a free one starts with -1, and the format header in slot 0 with 0
+        static boolean inUse(byte[] fat, int offset){
+            return fat[offset] != -1 && fat[offset] != 0;
+        }
+
+        // rewrite the blocks of one file for the current version, false if there is no room
+        boolean upgradeEntry(int entry){
+            return true;
+        }
+
+        // rewrite a FAT in the ASCII layout (name(8), block numbers(8 digits each), size(10 digits)) in the binary layout;
+        // older images with narrower fields also kept a byte per block in the bitmap, and Disk refuses to open them
+        void migrate(){
+            int legacySize = 8 + 8 * pointers + 10;
+            List<String> names = new ArrayList<>();
+            List<byte[]> entries = new ArrayList<>();
+            for(int b = 0; b < Disk.FAT_BLOCKS; b++){
+                byte[] fat = Disk.read(b);
+                for(int i = 0; i < Disk.BLOCKS_SIZE / legacySize; i++){
+                    int offset = legacySize * i;
+                    if(fat[offset] != -1){
+                        int[] blocks = new int[pointers];
+                        for(int k = 0; k < pointers; k++){
+                            blocks[k] = bytesToInt(fat, offset + 8 + 8 * k, offset + 16 + 8 * k);
+                        }
+                        String name = extractName(fat, offset).trim();
+                        names.add(name);
+                        entries.add(encodeEntry(name, bytesToInt(fat, offset + 8 + 8 * pointers, offset + legacySize), blocks));
+                    }
+                }
+            }
+            if(entries.size() > maxEntries - 1){
+                throw new IllegalStateException("The file allocation table cannot be migrated, it needs more FAT blocks.");
+            }
+            for(int b = 0; b < Disk.FAT_BLOCKS; b++){
+                Disk.fill(b, 0, Disk.BLOCKS_SIZE, (byte) -1);
+            }
+            Disk.set(0, 0, (byte) 0);
+            Disk.set(0, 1, FAT_VERSION);
+            directory.mount();
+            for(int i = 0; i < entries.size(); i++){
+                String error = addEntry(names.get(i), entries.get(i));
+                if(error != null){
+                    System.out.println(names.get(i) + ": " + error);
+                }
+            }
+            if(!entries.isEmpty()){
+                System.out.println("Migrated " + entries.size() + " files to FAT version " + FAT_VERSION + ".");
+            }
+        }
+
+        // encode a FAT entry, the name is cut to the first 8 bytes of its last part
+        byte[] encodeEntry(String name, long size, int... blocks){
+            ByteBuffer entry = ByteBuffer.allocate(entrySize).order(ByteOrder.LITTLE_ENDIAN);
+            byte[] nameBytes = new byte[8];
+            byte[] dummy = name.substring(name.lastIndexOf('/') + 1).getBytes(StandardCharsets.UTF_8);
+            Arrays.fill(nameBytes, (byte) -1);
+            System.arraycopy(dummy, 0, nameBytes, 0, Math.min(dummy.length, nameBytes.length));
+            entry.put(nameBytes);
+            for(int block : blocks){
+                entry.putInt(block);
+            }
+            entry.putLong(size);
+            return entry.array();
+        }
+
+        // paths of all files, sorted
+        public List<String> list(){
+            return directory.list("/", true);
+        }
+
+        // names in a directory, sorted, the subdirectories end with a slash; null if there is no such directory
+        public List<String> list(String path){
+            return directory.list(path, false);
+        }
+
+        // make an empty directory, its parent has to exist
+        public boolean makeDirectory(String path){
+            Disk.begin();
+            Lock lock = directory.lock.writeLock();
+            lock.lock();
+            try{
+                if(!canName(path)){
+                    return false;
+                }
+                if(!directory.make(path)){
+                    System.out.println("Not enough space.");
+                    return false;
+                }
+                return true;
+            } finally {
+                lock.unlock();
+                Disk.commit();
+            }
+        }
+
+        // remove a directory that holds nothing
+        public boolean removeDirectory(String path){
+            Disk.begin();
+            Lock lock = directory.lock.writeLock();
+            lock.lock();
+            try{
+                int node = directory.find(path, DirectoryTree.DIRECTORY);
+                if(node == -1 || node == directory.root){
+                    System.out.println("No such directory.");
+                    return false;
+                }
+                if(!directory.isEmpty(node)){
+                    System.out.println("Directory not empty.");
+                    return false;
+                }
+                directory.remove(path, DirectoryTree.DIRECTORY);
+                directory.free(node);
+                return true;
+            } finally {
+                lock.unlock();
+                Disk.commit();
+            }
+        }
+
+        // FAT addresses of all files, in FAT order
+        List<Integer> entries(){
+            List<Integer> entries = new ArrayList<>();
+            byte[] fat = new byte[Disk.BLOCKS_SIZE];
+            for(int b = 0; b < Disk.FAT_BLOCKS; b++){
+                Disk.read(b, fat);
+                for(int i = 0; i < entriesPerBlock; i++){
+                    if(inUse(fat, entrySize * i)){
+                        entries.add(b * Disk.BLOCKS_SIZE + entrySize * i);
+                    }
+                }
+            }
+            return entries;
+        }
+
+        // size of a file in bytes, -1 if it does not exist
+        public long size(String name){
+            Lock lock = lockFor(name).readLock();
+            lock.lock();
+            try{
+                int entry = lookup(name);
+                return entry == -1 ? -1 : fileSize(entry);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // data blocks of a file in order, null if it does not exist
+        public int[] blocks(String name){
+            Lock lock = lockFor(name).readLock();
+            lock.lock();
+            try{
+                int entry = lookup(name);
+                return entry == -1 ? null : blocks(entry);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int[] blocks(int entry){
+            int[] blocks = new int[(int) blockCount(entry)];
+            int block = -1;
+            for(int k = 0; k < blocks.length; k++){
+                block = blockAt(entry, k, block);
+                blocks[k] = block;
+            }
+            return blocks;
+        }
+
+        // find the FAT address of a file, -1 if it does not exist
+        int lookup(String name){
+            return directory.find(name, DirectoryTree.FILE);
+        }
+
+        // FAT address of an entry slot, entries never cross a block boundary
+        int entryAddress(int slot){
+            return (slot / entriesPerBlock) * Disk.BLOCKS_SIZE + (slot % entriesPerBlock) * entrySize;
+        }
+
+        // slot of a FAT address
+        int slotOf(int entry){
+            return (entry / Disk.BLOCKS_SIZE) * entriesPerBlock + (entry % Disk.BLOCKS_SIZE) / entrySize;
+        }
+
+        // find the first free space in file allocation table, starting at the hint
+        synchronized int findFATFree(){
+            for(int i = freeHint; i < maxEntries; i++){
+                int entry = entryAddress(i);
+                if(Disk.get(entry / Disk.BLOCKS_SIZE, entry % Disk.BLOCKS_SIZE) == -1){
+                    Metrics.FAT_PROBES.add(i - freeHint + 1);
+                    freeHint = i;
+                    return entry;
+                }
+            }
+            Metrics.FAT_PROBES.add(maxEntries - freeHint);
+            freeHint = maxEntries;
+            return -1;
+        }
+
+        // add file information to FAT and directory; null when added, otherwise the message for why not:
+        // the FAT has no free slot, or the directory has no blocks left to split into
+        synchronized String addEntry(String name, byte[] fileInfor){
+            int entry = findFATFree();
+            if(entry == -1){
+                return "File allocation table is full.";
+            }
+            Disk.put(entry / Disk.BLOCKS_SIZE, entry % Disk.BLOCKS_SIZE, fileInfor);
+            if(!directory.insert(name, entry, DirectoryTree.FILE)){
+                int offset = entry % Disk.BLOCKS_SIZE;
+                Disk.fill(entry / Disk.BLOCKS_SIZE, offset, offset + entrySize, (byte) -1);
+                return "Not enough space.";
+            }
+            return null;
+        }
+
+        // remove file information from FAT and directory; the directory goes first, so a journal group that
+        // ends between the two leaves an orphan entry behind rather than a name pointing at a free slot
+        synchronized void removeEntry(String name, int entry){
+            directory.remove(name, DirectoryTree.FILE);
+            int offset = entry % Disk.BLOCKS_SIZE;
+            Disk.fill(entry / Disk.BLOCKS_SIZE, offset, offset + entrySize, (byte) -1);
+            freeHint = Math.min(freeHint, slotOf(entry));
+        }
+
+        // read the k-th block pointer of a FAT entry
+        int pointer(int entry, int k){
+            return Disk.getInt(entry / Disk.BLOCKS_SIZE, entry % Disk.BLOCKS_SIZE + 8 + Disk.POINTER_SIZE * k);
+        }
+
+        // read the file size of a FAT entry
+        long fileSize(int entry){
+            return Disk.getLong(entry / Disk.BLOCKS_SIZE, entry % Disk.BLOCKS_SIZE + 8 + Disk.POINTER_SIZE * pointers);
+        }
+
+        // overwrite the k-th block pointer of a FAT entry
+        void setPointer(int entry, int k, int block){
+            Disk.putInt(entry / Disk.BLOCKS_SIZE, entry % Disk.BLOCKS_SIZE + 8 + Disk.POINTER_SIZE * k, block);
+        }
+
+        void setFileSize(int entry, long size){
+            Disk.putLong(entry / Disk.BLOCKS_SIZE, entry % Disk.BLOCKS_SIZE + 8 + Disk.POINTER_SIZE * pointers, size);
+        }
+
+        // number of blocks holding the data of a file
+        long blockCount(int entry){
+            return (fileSize(entry) + blockData() - 1) / blockData();
+        }
+
+        // read the next length bytes of a host file into the import buffer
+        ByteBuffer readChunk(FileChannel channel, int length) throws IOException {
+            ByteBuffer buffer = this.buffer.get();
+            buffer.clear().limit(length);
+            while(buffer.hasRemaining()){
+                if(channel.read(buffer) == -1){
+                    throw new EOFException("File changed while it was copied.");
+                }
+            }
+            return buffer.flip();
+        }
+
+        // check that a name is free and its directory exists
+        boolean canName(String name){
+            if(directory.find(name, DirectoryTree.ANY) != -1){
+                System.out.println("File already exists.");
+                return false;
+            }
+            if(directory.parent(name) == -1){
+                System.out.println("No such directory.");
+                return false;
+            }
+            return true;
+        }
+
+        // check that a new file can be added to the FAT
+        boolean canAdd(String name){
+            if(!canName(name)){
+                return false;
+            }
+            if(findFATFree() == -1){
+                System.out.println("File allocation table is full.");
+                return false;
+            }
+            return true;
+        }
+
+        // create a file from a file in the current directory
+        public boolean createFile(String fileName){
+            long started = System.nanoTime();
+            Disk.begin();
+            Lock lock = lockFor(nameOf(fileName)).writeLock();
+            lock.lock();
+            try{
+                return create(fileName);
+            } finally {
+                lock.unlock();
+                Disk.commit();
+                Metrics.CREATE.record(System.nanoTime() - started);
+            }
+        }
+
+        abstract boolean create(String fileName);
+
+        // create an empty file, its data is added with write()
+        public boolean createEmpty(String name){
+            long started = System.nanoTime();
+            Disk.begin();
+            Lock lock = lockFor(name).writeLock();
+            lock.lock();
+            try{
+                if(!canAdd(name)){
+                    return false;
+                }
+                int[] blocks = reserve(blocksFor(0));
+                if(blocks == null){
+                    System.out.println("Not enough space.");
+                    return false;
+                }
+                String error = addEntry(name, build(name, null, 0, blocks));
+                if(error != null){
+                    release(blocks);
+                    System.out.println(error);
+                    return false;
+                }
+                return true;
+            } catch (IOException e){
+                // nothing is read for an empty file
+                throw new UncheckedIOException(e);
+            } finally {
+                lock.unlock();
+                Disk.commit();
+                Metrics.CREATE.record(System.nanoTime() - started);
+            }
+        }
+
+        // import many files from the current directory at once: the blocks of all of them are reserved in one
+        // pass over the free runs, their data is read in parallel and their FAT entries are added together;
+        // returns the names of the files imported
+        public List<String> createFiles(List<String> fileNames){
+            long started = System.nanoTime();
+            Map<String, String> files = new LinkedHashMap<>();
+            for(String fileName : fileNames){
+                String name = nameOf(fileName);
+                if(files.containsKey(name)){
+                    System.out.println("File already exists.");
+                } else {
+                    files.put(name, fileName);
+                }
+            }
+            // take the write locks of every stripe involved, in stripe order
+            Disk.begin();
+            SortedSet<Integer> stripes = new TreeSet<>();
+            for(String name : files.keySet()){
+                stripes.add(stripe(name));
+            }
+            for(int stripe : stripes){
+                locks[stripe].writeLock().lock();
+            }
+            List<String> imported = Collections.emptyList();
+            try{
+                imported = createAll(files);
+                return imported;
+            } finally {
+                for(int stripe : stripes){
+                    locks[stripe].writeLock().unlock();
+                }
+                Disk.commit();
+                // every file of the batch waited for all of it
+                long time = System.nanoTime() - started;
+                for(int i = 0; i < imported.size(); i++){
+                    Metrics.CREATE.record(time);
+                }
+            }
+        }
+
+        private List<String> createAll(Map<String, String> files){
+            List<String> names = new ArrayList<>();
+            List<int[]> planned = new ArrayList<>();
+            List<Long> sizes = new ArrayList<>();
+            int slots = freeFATSlots();
+            // names are checked and the files sized first, neither the directories nor the host file system
+            // are read while the bitmap is held
+            files.keySet().removeIf(name -> !canName(name));
+            Map<String, Long> fileSizes = new HashMap<>();
+            for(Map.Entry<String, String> file : files.entrySet()){
+                try{
+                    fileSizes.put(file.getKey(), Files.size(Paths.get(file.getValue())));
+                } catch (IOException e){
+                    System.err.println("No such file in current directory.");
+                }
+            }
+            files.keySet().retainAll(fileSizes.keySet());
+            // one pass over the free runs for all the files
+            synchronized(Disk.bitmap){
+                for(Map.Entry<String, String> file : files.entrySet()){
+                    if(names.size() == slots){
+                        System.out.println("File allocation table is full.");
+                        continue;
+                    }
+                    long size = fileSizes.get(file.getKey());
+                    int[] blocks = reserve(blocksFor(size));
+                    if(blocks == null){
+                        System.out.println("Not enough space.");
+                        continue;
+                    }
+                    names.add(file.getKey());
+                    planned.add(blocks);
+                    sizes.add(size);
+                }
+            }
+            // read the files in parallel, each into its own blocks
+            List<Future<byte[]>> built = new ArrayList<>();
+            ExecutorService readers = Executors.newFixedThreadPool(Math.max(1, Math.min(names.size(), Runtime.getRuntime().availableProcessors())));
+            try{
+                for(int i = 0; i < names.size(); i++){
+                    String name = names.get(i);
+                    String fileName = files.get(name);
+                    int[] blocks = planned.get(i);
+                    long size = sizes.get(i);
+                    built.add(readers.submit(() -> {
+                        try(FileChannel channel = FileChannel.open(Paths.get(fileName))){
+                            if(channel.size() != size){
+                                throw new IOException("File changed while it was copied.");
+                            }
+                            return build(name, channel, size, blocks);
+                        }
+                    }));
+                }
+                byte[][] entries = new byte[names.size()][];
+                for(int i = 0; i < names.size(); i++){
+                    try{
+                        entries[i] = built.get(i).get();
+                    } catch (ExecutionException e){
+                        System.err.println("Could not copy " + files.get(names.get(i)) + ": " + e.getCause().getMessage());
+                    } catch (InterruptedException e){
+                        Thread.currentThread().interrupt();
+                        System.err.println("Could not copy " + files.get(names.get(i)) + ": interrupted");
+                    }
+                }
+                // every FAT entry in one scan, the files that failed give their blocks back
+                addEntries(names, entries);
+                List<String> imported = new ArrayList<>();
+                for(int i = 0; i < names.size(); i++){
+                    if(entries[i] != null){
+                        imported.add(names.get(i));
+                    } else {
+                        release(planned.get(i));
+                    }
+                }
+                return imported;
+            } finally {
+                readers.shutdownNow();
+            }
+        }
+
+        // blocks a bulk import reserves for a file of size bytes
+        long blocksFor(long size){
+            return (size + blockData() - 1) / blockData();
+        }
+
+        // a run of count blocks, or for a method that can follow pointers any count free blocks; null if they do not fit
+        int[] reserve(long count){
+            if(count > numBlockFree()){
+                return null;
+            }
+            int[] blocks = new int[(int) count];
+            int start = count == 0 ? -1 : allocateBlocks((int) count);
+            for(int i = 0; i < count; i++){
+                blocks[i] = start != -1 ? start + i : allocateBlock(i == 0 ? 0 : blocks[i - 1] + 1);
+            }
+            return blocks;
+        }
+
+        // write the data of a file to its reserved blocks and return its FAT entry
+        abstract byte[] build(String name, FileChannel channel, long size, int[] blocks) throws IOException;
+
+        // give back the blocks reserved for a file that was not imported
+        void release(int[] blocks){
+            for(int block : blocks){
+                Disk.keepResident(block, false);
+                Disk.setUsed(block, false);
+            }
+        }
+
+        // free FAT slots, counted in one scan from the hint
+        synchronized int freeFATSlots(){
+            int free = 0;
+            for(int i = freeHint; i < maxEntries; i++){
+                int entry = entryAddress(i);
+                if(Disk.get(entry / Disk.BLOCKS_SIZE, entry % Disk.BLOCKS_SIZE) == -1){
+                    free++;
+                }
+            }
+            Metrics.FAT_PROBES.add(maxEntries - freeHint);
+            return free;
+        }
+
+        // add the entries of many files with one scan of the FAT, a null entry is skipped
+        // and set to null when the FAT has no room for it
+        synchronized void addEntries(List<String> names, byte[][] entries){
+            int slot = freeHint;
+            for(int i = 0; i < entries.length; i++){
+                if(entries[i] == null){
+                    continue;
+                }
+                int entry = -1;
+                for(; slot < maxEntries && entry == -1; slot++){
+                    int address = entryAddress(slot);
+                    Metrics.FAT_PROBES.increment();
+                    if(Disk.get(address / Disk.BLOCKS_SIZE, address % Disk.BLOCKS_SIZE) == -1){
+                        entry = address;
+                    }
+                }
+                if(entry == -1){
+                    System.out.println("File allocation table is full.");
+                    entries[i] = null;
+                    continue;
+                }
+                Disk.put(entry / Disk.BLOCKS_SIZE, entry % Disk.BLOCKS_SIZE, entries[i]);
+                if(!directory.insert(names.get(i), entry, DirectoryTree.FILE)){
+                    Disk.fill(entry / Disk.BLOCKS_SIZE, entry % Disk.BLOCKS_SIZE, entry % Disk.BLOCKS_SIZE + entrySize, (byte) -1);
+                    System.out.println("Not enough space.");
+                    entries[i] = null;
+                    slot--;
+                }
+            }
+            // the slots before the last one probed are all in use now
+            freeHint = slot;
+        }
+
+        // the k-th block of a file, previous is its (k-1)-th block
+        abstract int blockAt(int entry, int k, int previous);
+
+        // the k-th block of a file without knowing the one before it
+        int locate(int entry, int k){
+            return blockAt(entry, k, -1);
+        }
+
+        // make room for a file to hold blocks blocks, the size is left alone; false if the disk is full
+        abstract boolean grow(int entry, long blocks);
+
+        // bytes of file data in one block
+        int blockData(){
+            return Disk.BLOCKS_SIZE;
+        }
+
+        // read up to length bytes of a file at offset into dst, -1 at the end of the file
+        public int read(String name, long offset, int length, ByteBuffer dst) throws FileNotFoundException {
+            long started = System.nanoTime();
+            Lock lock = lockFor(name).readLock();
+            lock.lock();
+            try{
+                int entry = lookup(name);
+                if(entry == -1){
+                    throw new FileNotFoundException(name);
+                }
+                long size = fileSize(entry);
+                if(offset < 0){
+                    throw new IllegalArgumentException("Negative offset: " + offset);
+                }
+                if(offset >= size){
+                    return -1;
+                }
+                int total = (int) Math.min(Math.min(length, dst.remaining()), size - offset);
+                int block = -1;
+                for(int done = 0; done < total; ){
+                    long position = offset + done;
+                    int k = (int) (position / blockData());
+                    block = done == 0 ? locate(entry, k) : blockAt(entry, k, block);
+                    int within = (int) (position % blockData());
+                    int count = Math.min(total - done, blockData() - within);
+                    Disk.read(block, within, dst, count);
+                    done += count;
+                }
+                return total;
+            } finally {
+                lock.unlock();
+                Metrics.READ.record(System.nanoTime() - started);
+            }
+        }
+
+        // write src into a file at offset, growing the file when the write goes past its end
+        public int write(String name, long offset, ByteBuffer src) throws IOException {
+            Disk.begin();
+            Lock lock = lockFor(name).writeLock();
+            lock.lock();
+            try{
+                int entry = lookup(name);
+                if(entry == -1){
+                    throw new FileNotFoundException(name);
+                }
+                long size = fileSize(entry);
+                if(offset < 0 || offset > size){
+                    throw new IOException("Offset " + offset + " is outside the file.");
+                }
+                int total = src.remaining();
+                long end = offset + total;
+                if(end > size && !grow(entry, (end + blockData() - 1) / blockData())){
+                    throw new IOException("Not enough space.");
+                }
+                int block = -1;
+                for(int done = 0; done < total; ){
+                    long position = offset + done;
+                    int k = (int) (position / blockData());
+                    block = done == 0 ? locate(entry, k) : blockAt(entry, k, block);
+                    int within = (int) (position % blockData());
+                    int count = Math.min(total - done, blockData() - within);
+                    // the block takes count bytes of src, limited in place instead of sliced
+                    int limit = src.limit();
+                    src.limit(src.position() + count);
+                    Disk.put(block, within, src);
+                    src.limit(limit);
+                    done += count;
+                }
+                if(end > size){
+                    setFileSize(entry, end);
+                }
+                return total;
+            } finally {
+                lock.unlock();
+                Disk.commit();
+            }
+        }
+
+        // threads that load blocks ahead of sequential readers
+        static final ExecutorService prefetchers = Executors.newFixedThreadPool(4, task -> {
+            Thread thread = new Thread(task, "prefetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // load blocks [from, to) of a file for a reader whose k-th block is block; the chain is followed from
+        // the reader's block on one thread, each pointer read is a cache hit once the block before it is loaded
+        void prefetch(int entry, int k, int block, long from, long to){
+            prefetchers.execute(() -> {
+                try{
+                    int b = block;
+                    for(long i = k + 1; i < to; i++){
+                        b = blockAt(entry, (int) i, b);
+                        if(i >= from && !Disk.prefetch(b)){
+                            return;
+                        }
+                    }
+                } catch (RuntimeException e){
+                    // the file may have changed after the reader moved on, a prefetch is only a hint
+                }
+            });
+        }
+
+        // open a file for streaming reads, the channel holds the file's read lock until it is closed
+        public BlockChannel open(String name) throws FileNotFoundException {
+            Lock lock = lockFor(name).readLock();
+            lock.lock();
+            int entry = lookup(name);
+            if(entry == -1){
+                lock.unlock();
+                throw new FileNotFoundException(name);
+            }
+            return new BlockChannel(this, entry, lock);
+        }
+
+        // open a file as an input stream
+        public InputStream openStream(String name) throws FileNotFoundException {
+            return Channels.newInputStream(open(name));
+        }
+
+        // find file and print its content one block at a time
+        public void getData(String name) {
+            try(BlockChannel channel = open(name)){
+                StringBuilder text = new StringBuilder("[");
+                boolean first = true;
+                ByteBuffer block;
+                while((block = channel.nextBlock()) != null){
+                    while(block.hasRemaining()){
+                        if(!first){
+                            text.append(", ");
+                        }
+                        text.append(block.get());
+                        first = false;
+                    }
+                    System.out.print(text);
+                    text.setLength(0);
+                }
+                System.out.println("]");
+            } catch (FileNotFoundException e){
+                System.out.println("File not found!");
+            } catch (IOException e){
+                // the channel is not closed before the try block ends
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        // delete a file
+        public void deleteFile(String name){
+            long started = System.nanoTime();
+            Disk.begin();
+            Lock lock = lockFor(name).writeLock();
+            lock.lock();
+            try{
+                delete(name);
+            } finally {
+                lock.unlock();
+                Disk.commit();
+                Metrics.DELETE.record(System.nanoTime() - started);
+            }
+        }
+
+        abstract void delete(String name);
+
+        // copy file to the current directory
+        public void copyFile(String sourceName, String destName){
+            long started = System.nanoTime();
+            Lock lock = lockFor(sourceName).readLock();
+            lock.lock();
+            try{
+                // look up the file in the directory
+                int entry = lookup(sourceName);
+                if(entry == -1){
+                    System.out.println("File not found!");
+                    return;
+                }
+
+                Path currentDirectory = Paths.get(System.getProperty("user.dir"));
+                Path filePath = currentDirectory.resolve(destName);
+                if(!Files.isRegularFile(filePath)){
+                    System.out.println("Error: The destination file must be in the current directory.");
+                    return;
+                }
+
+                try(FileChannel channel = FileChannel.open(filePath, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    export(entry, channel);
+                    System.out.println("File copy successfully at: " + filePath);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            } finally {
+                lock.unlock();
+                Metrics.COPY.record(System.nanoTime() - started);
+            }
+        }
+
+        // write the data of a file to a channel, block views are sent with gathering writes
+        void export(int entry, GatheringByteChannel target) throws IOException {
+            ByteBuffer[] views = new ByteBuffer[Disk.Storage.GATHER];
+            try(BlockChannel channel = new BlockChannel(this, entry, null)){
+                ByteBuffer block = channel.nextBlock();
+                while(block != null){
+                    int n = 0;
+                    while(n < views.length && block != null){
+                        views[n++] = block;
+                        block = channel.nextBlock();
+                    }
+                    Disk.Storage.writeFully(target, views, n);
+                }
+            }
+        }
+
+        // move a file to the lowest free run below it that holds it, or slide it over the free blocks right before it,
+        // or move a scattered file to the lowest free run that holds it anywhere, under its write lock;
+        // returns the number of blocks moved
+        public int defragment(String name){
+            Disk.begin();
+            Lock lock = lockFor(name).writeLock();
+            lock.lock();
+            try{
+                int entry = lookup(name);
+                if(entry == -1){
+                    return 0;
+                }
+                int[] blocks = heldBlocks(entry);
+                if(blocks.length == 0){
+                    return 0;
+                }
+                boolean sequential = true;
+                for(int k = 1; k < blocks.length; k++){
+                    sequential &= blocks[k] == blocks[0] + k;
+                }
+                // the copy goes to blocks the file does not use, so its entry switches from one whole layout to the other
+                int target = Disk.bitmap.lowestRun(blocks.length);
+                if(target != -1 && target < blocks[0] && allocateAt(target, blocks.length)){
+                    relocate(entry, blocks, target);
+                    return blocks.length;
+                }
+                // otherwise it is compacted in place: it slides over the free blocks right before it and takes the
+                // free blocks between its own, and is copied from its first block up over the blocks it overlaps
+                int start = blocks[0];
+                while(start > Disk.firstDataBlock() && Disk.isFree(start - 1)){
+                    start--;
+                }
+                if((start < blocks[0] || !sequential) && reserveInPlace(blocks, start)){
+                    relocate(entry, blocks, start);
+                    return blocks.length;
+                }
+                // a scattered file with no room below it or in place goes up to a run that holds it whole,
+                // a sequential file never moves up
+                if(!sequential){
+                    target = Disk.bitmap.lowestRun(blocks.length);
+                    if(target != -1 && allocateAt(target, blocks.length)){
+                        relocate(entry, blocks, target);
+                        return blocks.length;
+                    }
+                }
+                return 0;
+            } finally {
+                lock.unlock();
+                Disk.commit();
+            }
+        }
+
+        // reserve the free blocks of [start, start + blocks.length) when the rest of it is the file's own and
+        // copying the file up from its first block reads each of its blocks before writing over it
+        static boolean reserveInPlace(int[] blocks, int start){
+            int end = start + blocks.length;
+            if(end > Disk.NUM_BLOCKS){
+                return false;
+            }
+            boolean[] own = new boolean[blocks.length];
+            for(int k = 0; k < blocks.length; k++){
+                if(blocks[k] >= start && blocks[k] < end){
+                    if(blocks[k] - start < k){
+                        return false;
+                    }
+                    own[blocks[k] - start] = true;
+                }
+            }
+            synchronized(Disk.bitmap){
+                for(int k = 0; k < own.length; k++){
+                    if(!own[k] && !Disk.isFree(start + k)){
+                        return false;
+                    }
+                }
+                for(int k = 0; k < own.length; k++){
+                    if(!own[k]){
+                        allocateAt(start + k, 1);
+                    }
+                }
+            }
+            return true;
+        }
+
+        // every data block a file holds in order, which can run past its size after a failed write
+        int[] heldBlocks(int entry){
+            return blocks(entry);
+        }
+
+        // copy the blocks of a file to [start, start + blocks.length), which is reserved, and point the file at them
+        abstract void relocate(int entry, int[] blocks, int start);
+
+        // clear and free the old blocks of a relocated file that are not part of its new run
+        static void freeMoved(int[] blocks, int start){
+            for(int block : blocks){
+                if(block < start || block >= start + blocks.length){
+                    Disk.free(block);
+                }
+            }
+        }
+
+        // display bitmap
+        public void displayBitmap(){
+            for(int i = 0; i < Disk.NUM_BLOCKS; i++){
+                if(i % 32 == 0){
+                    System.out.println();
+                }
+                System.out.print(Disk.isFree(i) ? 0 : 1);
+            }
+            System.out.println();
+            Disk.Extents runs = Disk.bitmap.runs;
+            System.out.println("Free blocks: " + numBlockFree() + " in " + runs.count() + " runs, largest run: " + runs.largest());
+        }
+
+        // display block
+        public void displayBlock(int blockNum){
+            for(int i = 0; i < Disk.BLOCKS_SIZE; i++){
+                if(i % 32 == 0){
+                    System.out.println();
+                }
+                System.out.print(Disk.get(blockNum, i));
+            }
+        }
+
+        // display the entries of one FAT block
+        public abstract void displayFAT(byte[] data);
+    }
+
+    static class Contiguous extends AllocationMethod {
+
+        // block pointers: start block, block count
+        Contiguous(){
+            super(2);
+        }
+
+        @Override
+        int blockAt(int entry, int k, int previous){
+            return pointer(entry, 0) + k;
+        }
+
+        @Override
+        // take the free blocks right after the extent, or move the file to a run that is large enough
+        boolean grow(int entry, long blocks){
+            int start = pointer(entry, 0);
+            int count = pointer(entry, 1);
+            if(blocks <= count){
+                return true;
+            }
+            if(blocks > Disk.NUM_BLOCKS){
+                return false;
+            }
+            if(count > 0 && allocateAt(start + count, (int) blocks - count)){
+                setPointer(entry, 1, (int) blocks);
+                return true;
+            }
+            int moved = allocateBlocks((int) blocks);
+            if(moved == -1){
+                return false;
+            }
+            for(int i = 0; i < count; i++){
+                Disk.write(moved + i, Disk.view(start + i));
+            }
+            setPointer(entry, 0, moved);
+            setPointer(entry, 1, (int) blocks);
+            // free the old extent once the entry points at the new one
+            for(int i = 0; i < count; i++){
+                Disk.free(start + i);
+            }
+            return true;
+        }
+
+        @Override
+        // the file must be one run
+        int[] reserve(long count){
+            int start = count == 0 || count > numBlockFree() ? -1 : allocateBlocks((int) count);
+            if(count > 0 && start == -1){
+                return null;
+            }
+            int[] blocks = new int[(int) count];
+            for(int i = 0; i < count; i++){
+                blocks[i] = start + i;
+            }
+            return blocks;
+        }
+
+        @Override
+        byte[] build(String name, FileChannel channel, long size, int[] blocks) throws IOException {
+            for(int i = 0; i < blocks.length; i++){
+                long offset = (long) Disk.BLOCKS_SIZE * i;
+                Disk.write(blocks[i], readChunk(channel, (int) Math.min(Disk.BLOCKS_SIZE, size - offset)));
+            }
+            return encodeEntry(name, size, blocks.length == 0 ? -1 : blocks[0], blocks.length);
+        }
+
+        @Override
+        // the whole extent, grow() may have reserved more blocks than the size covers
+        int[] heldBlocks(int entry){
+            int[] blocks = new int[pointer(entry, 1)];
+            for(int k = 0; k < blocks.length; k++){
+                blocks[k] = pointer(entry, 0) + k;
+            }
+            return blocks;
+        }
+
+        @Override
+        void relocate(int entry, int[] blocks, int start){
+            for(int k = 0; k < blocks.length; k++){
+                Disk.write(start + k, Disk.view(blocks[k]));
+            }
+            setPointer(entry, 0, start);
+            freeMoved(blocks, start);
+        }
+
+        @Override
+        // the file is one extent, so it is sent in a single transfer
+        void export(int entry, GatheringByteChannel target) throws IOException {
+            Disk.transferTo(pointer(entry, 0), fileSize(entry), target);
+        }
+
+        @Override
+        // create file
+        boolean create(String fileName){
+            String[] name = fileName.split("\\.");
+            try(FileChannel channel = FileChannel.open(Paths.get(fileName))){
+                if(!canAdd(name[0])){
+                    return false;
+                }
+                // calculate the number of blocks
+                long fileSize = channel.size();
+                long blockNeed = (fileSize + Disk.BLOCKS_SIZE - 1) / Disk.BLOCKS_SIZE;
+                int startBlock = blockNeed > numBlockFree() ? -1 : allocateBlocks((int) blockNeed);
+                if (startBlock == -1) {
+                    System.out.println("Not enough space.");
+                    return false;
+                }
+                // write data file to disk as it is read
+                try {
+                    for (int i = 0; i < blockNeed; i++) {
+                        long offset = (long) Disk.BLOCKS_SIZE * i;
+                        Disk.write(startBlock + i, readChunk(channel, (int) Math.min(Disk.BLOCKS_SIZE, fileSize - offset)));
+                    }
+                    // add file information to FAT
+                    String error = addEntry(name[0], encodeEntry(name[0], fileSize, startBlock, (int) blockNeed));
+                    if (error != null) {
+                        throw new IOException(error);
+                    }
+                } catch (IOException e){
+                    // roll back the reserved blocks
+                    for (int i = 0; i < blockNeed; i++) {
+                        Disk.setUsed(startBlock + i, false);
+                    }
+                    throw e;
+                }
+                return true;
+            } catch (NoSuchFileException e){
+                System.err.println("No such file in current directory.");
+            } catch (IOException e){
+                System.err.println("Could not copy " + fileName + ": " + e.getMessage());
+            }
+            return false;
+        }
+
+        @Override
+        // delete a file
+        void delete(String name){
+            // look up the file in the directory
+            int entry = lookup(name);
+            if(entry == -1){
+                System.out.println("File not found!");
+                return;
+            }
+            int startIndex = pointer(entry, 0);
+            int blockSize = pointer(entry, 1);
+            // update FAT
+            removeEntry(name, entry);
+            // delete the file data and update bitmap
+            for (int i = startIndex; i < (startIndex + blockSize); i++){
+                Disk.free(i);
+            }
+        }
+
+        @Override
+        // display file allocation table
+        public void displayFAT(byte[] data){
+            for(int i = 0; i < entriesPerBlock; i++) {
+                byte[] parts = Arrays.copyOfRange(data, entrySize * i, (entrySize * (i + 1)));
+                if (inUse(parts, 0)) {
+                    System.out.println(extractName(parts, 0) + " " + extractStartBlock(parts) + " " + extractSize(parts));
+                }
+            }
+        }
+
+        // extract the block count from the second pointer
+        static String extractSize(byte[] data){
+            return String.valueOf((int) Disk.INTS.get(data, 12));
+        }
+    }
+
+    static class Chained extends AllocationMethod{
+
+        // block pointers: start block, end block
+        Chained(){
+            super(2);
+        }
+
+        // bytes of file data in a block, the pointer to the next block takes the rest
+        @Override
+        int blockData(){
+            return Disk.BLOCKS_SIZE - Disk.POINTER_SIZE;
+        }
+
+        // the block after a block of a file, -1 after the last one; kept in the last bytes of the block
+        int next(int block){
+            return Disk.getInt(block, blockData());
+        }
+
+        void link(int block, int next){
+            Disk.putInt(block, blockData(), next);
+        }
+
+        @Override
+        int blockAt(int entry, int k, int previous){
+            return k == 0 ? pointer(entry, 0) : next(previous);
+        }
+
+        // every SKIP-th block of a file, built by one walk of the chain on the first seek into it and extended
+        // as blocks are linked to its end, so a seek follows at most SKIP - 1 pointers
+        static final int SKIP = 64;
+        // indexed by FAT slot, so a seek boxes no key
+        final AtomicReferenceArray<Skips> skips = new AtomicReferenceArray<>(maxEntries);
+
+        // the skip table of one file and the number of blocks in its chain
+        static final class Skips {
+            int[] table;
+            int length;
+
+            Skips(long blocks){
+                table = new int[(int) (blocks / SKIP) + 1];
+            }
+
+            // a block linked to the end of the chain
+            void add(int block){
+                if(length % SKIP == 0){
+                    if(length / SKIP == table.length){
+                        table = Arrays.copyOf(table, 2 * table.length);
+                    }
+                    table[length / SKIP] = block;
+                }
+                length++;
+            }
+        }
+
+        @Override
+        public void remount(){
+            for(int slot = 0; slot < maxEntries; slot++){
+                skips.set(slot, null);
+            }
+            super.remount();
+        }
+
+        @Override
+        int locate(int entry, int k){
+            // the chain is walked to its end, a write may have linked blocks past the current size;
+            // two readers may both build the table, and either one is right
+            Skips skip = skips.get(slotOf(entry));
+            if(skip == null){
+                skip = new Skips(blockCount(entry));
+                for(int block = pointer(entry, 0); block != -1; block = next(block)){
+                    skip.add(block);
+                }
+                skips.set(slotOf(entry), skip);
+            }
+            int block = skip.table[k / SKIP];
+            for(int i = k % SKIP; i > 0; i--){
+                block = next(block);
+            }
+            return block;
+        }
+
+        @Override
+        // link new blocks after the last one
+        boolean grow(int entry, long blocks){
+            long count = blockCount(entry);
+            if(blocks <= count){
+                return true;
+            }
+            if(blocks - count > numBlockFree()){
+                return false;
+            }
+            int end = pointer(entry, 1);
+            int[] added = new int[(int) (blocks - count)];
+            for(int i = 0; i < added.length; i++){
+                added[i] = allocateBlock((i == 0 ? end : added[i - 1]) + 1);
+                if(added[i] == -1){
+                    for(int j = 0; j < i; j++){
+                        Disk.setUsed(added[j], false);
+                    }
+                    return false;
+                }
+            }
+            for(int i = 0; i < added.length; i++){
+                link(added[i], i + 1 < added.length ? added[i + 1] : -1);
+            }
+            if(end == -1){
+                setPointer(entry, 0, added[0]);
+            } else {
+                link(end, added[0]);
+            }
+            setPointer(entry, 1, added[added.length - 1]);
+            // the new blocks follow the old end, a table already built only has to take them
+            Skips skip = skips.get(slotOf(entry));
+            if(skip != null){
+                for(int block : added){
+                    skip.add(block);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        byte[] build(String name, FileChannel channel, long size, int[] blocks) throws IOException {
+            for(int i = 0; i < blocks.length; i++){
+                link(blocks[i], i + 1 < blocks.length ? blocks[i + 1] : -1);
+                Disk.write(blocks[i], readChunk(channel, (int) Math.min(blockData(), size - (long) i * blockData())));
+            }
+            return encodeEntry(name, size, blocks.length == 0 ? -1 : blocks[0], blocks.length == 0 ? -1 : blocks[blocks.length - 1]);
+        }
+
+        @Override
+        // the whole chain, a write may have linked blocks past the size
+        int[] heldBlocks(int entry){
+            int[] blocks = new int[(int) blockCount(entry)];
+            int n = 0;
+            for(int block = pointer(entry, 0); block != -1; block = next(block)){
+                if(n == blocks.length){
+                    blocks = Arrays.copyOf(blocks, n * 2 + 1);
+                }
+                blocks[n++] = block;
+            }
+            return Arrays.copyOf(blocks, n);
+        }
+
+        @Override
+        // build the new chain before the entry points at it, the old chain is freed from the list of its blocks
+        void relocate(int entry, int[] blocks, int start){
+            for(int k = 0; k < blocks.length; k++){
+                Disk.write(start + k, Disk.view(blocks[k]));
+                link(start + k, k + 1 < blocks.length ? start + k + 1 : -1);
+            }
+            setPointer(entry, 0, start);
+            setPointer(entry, 1, start + blocks.length - 1);
+            Skips skip = new Skips(blocks.length);
+            for(int k = 0; k < blocks.length; k++){
+                skip.add(start + k);
+            }
+            skips.set(slotOf(entry), skip);
+            freeMoved(blocks, start);
+        }
+
+        @Override
+        boolean create(String fileName){
+            String[] name = fileName.split("\\.");
+            try(FileChannel channel = FileChannel.open(Paths.get(fileName))){
+                if(!canAdd(name[0])){
+                    return false;
+                }
+                // calculate the number of blocks
+                long fileSize = channel.size();
+                long blockNeed = (fileSize + blockData() - 1) / blockData();
+                if(blockNeed <= numBlockFree()){
+                    int startBlock = -1;
+                    int endBlock = -1;
+                    // reserve and link each block, then fill it as its data is read
+                    try {
+                        for(long i = 0; i < blockNeed; i++){
+                            int currentBlock = allocateBlock(endBlock + 1);
+                            if(currentBlock == -1){
+                                throw new IOException("Not enough space.");
+                            }
+                            // null pointer until the next block is linked
+                            link(currentBlock, -1);
+                            if(endBlock == -1){
+                                startBlock = currentBlock;
+                            } else {
+                                link(endBlock, currentBlock);
+                            }
+                            endBlock = currentBlock;
+                            Disk.write(currentBlock, readChunk(channel, (int) Math.min(blockData(), fileSize - i * blockData())));
+                        }
+                        // add file information to FAT
+                        String error = addEntry(name[0], encodeEntry(name[0], fileSize, startBlock, endBlock));
+                        if(error != null){
+                            throw new IOException(error);
+                        }
+                    } catch (IOException e){
+                        // roll back the chain reserved so far
+                        int index = startBlock;
+                        while(index != -1){
+                            int nextBlock = next(index);
+                            Disk.setUsed(index, false);
+                            index = nextBlock;
+                        }
+                        throw e;
+                    }
+                    return true;
+                } else {
+                    System.out.println("Not enough space.");
+                    return false;
+                }
+            } catch (NoSuchFileException e){
+                System.err.println("No such file in current directory.");
+            } catch (IOException e){
+                System.err.println("Could not copy " + fileName + ": " + e.getMessage());
+            }
+            return false;
+        }
+
+        @Override
+        void delete(String name) {
+            // look up the file in the directory
+            int entry = lookup(name);
+            if(entry == -1){
+                System.out.println("File not found!");
+                return;
+            }
+            int startIndex = pointer(entry, 0);
+            // the skip table goes before the slot is freed, a file created in the slot must not find it
+            skips.set(slotOf(entry), null);
+            // update FAT
+            removeEntry(name, entry);
+
+            int index = startIndex;
+            int nextBlock;
+            while(index != -1){
+                nextBlock = next(index);
+                // delete the file data and pointer, and update bitmap
+                Disk.free(index);
+                index = nextBlock;
+            }
+        }
+
+        @Override
+        public void displayFAT(byte[] data) {
+            for(int i = 0; i < entriesPerBlock; i++) {
+                byte[] parts = Arrays.copyOfRange(data, entrySize * i, (entrySize * (i + 1)));
+                if (inUse(parts, 0)) {
+                    System.out.println(extractName(parts, 0) + " " + extractStartBlock(parts) + " " + extractEndBlock(parts));
+                }
+            }
+        }
+
+    }
+
+    // chained allocation with the next pointers in a file allocation table instead of the blocks, MS-DOS style:
+    // next[b] is the block after b, walked in memory and written through to a run of table blocks
+    // whose first block is kept in bytes 2-5 of the FAT header; data blocks hold a full BLOCKS_SIZE bytes
+    static class TableChained extends Chained {
+        // set by mount() while the superclass is constructed, so they have no initializers
+        int[] next;
+        int tableStart;
+
+        @Override
+        int blockData(){
+            return Disk.BLOCKS_SIZE;
+        }
+
+        @Override
+        int next(int block){
+            return next[block];
+        }
+
+        @Override
+        void link(int block, int next){
+            this.next[block] = next;
+            Disk.putInt(tableStart + block / pointersPerBlock(), (block % pointersPerBlock()) * Disk.POINTER_SIZE, next);
+        }
+
+        static int pointersPerBlock(){
+            return Disk.BLOCKS_SIZE / Disk.POINTER_SIZE;
+        }
+
+        @Override
+        // load the table, or reserve and clear it on the first mount
+        void mount(){
+            super.mount();
+            int tableBlocks = (Disk.NUM_BLOCKS + pointersPerBlock() - 1) / pointersPerBlock();
+            next = new int[Disk.NUM_BLOCKS];
+            tableStart = Disk.getInt(0, 2);
+            if(tableStart == -1){
+                tableStart = allocateBlocks(tableBlocks);
+                if(tableStart == -1){
+                    throw new IllegalStateException("There is no room for the file allocation table.");
+                }
+                // the table changes with the FAT, so a journal covers it like the FAT blocks
+                for(int b = 0; b < tableBlocks; b++){
+                    Disk.journal(tableStart + b);
+                }
+                Arrays.fill(next, -1);
+                for(int b = 0; b < tableBlocks; b++){
+                    Disk.fill(tableStart + b, 0, Disk.BLOCKS_SIZE, (byte) -1);
+                }
+                Disk.putInt(0, 2, tableStart);
+            } else {
+                for(int b = 0; b < tableBlocks; b++){
+                    Disk.journal(tableStart + b);
+                }
+                for(int block = 0; block < Disk.NUM_BLOCKS; block++){
+                    next[block] = Disk.getInt(tableStart + block / pointersPerBlock(), (block % pointersPerBlock()) * Disk.POINTER_SIZE);
+                }
+            }
+        }
+    }
+
+    static class Indexed extends AllocationMethod{
+
+        // the index block holds DIRECT data block pointers, then pointers to a single, a double and a triple
+        // indirect block; indirect blocks are full of pointers, 0 marks an unused pointer
+        static final int LEVELS = 3;
+
+        // block pointers: index block
+        Indexed(){
+            super(1);
+        }
+
+        // pointers in one block
+        static int perBlock(){
+            return Disk.BLOCKS_SIZE / Disk.POINTER_SIZE;
+        }
+
+        static int direct(){
+            return perBlock() - LEVELS;
+        }
+
+        // data blocks reached through one pointer of an indirect block at a level, perBlock^(level - 1)
+        static long span(int level){
+            long span = 1;
+            for(int l = 1; l < level; l++){
+                span *= perBlock();
+            }
+            return span;
+        }
+
+        // largest file in blocks
+        static long maxBlocks(){
+            return direct() + span(2) + span(3) + span(4);
+        }
+
+        // indirect blocks needed for a file of n data blocks
+        static long indirectBlocks(long n){
+            long count = 0;
+            n -= direct();
+            for(int level = 1; level <= LEVELS && n > 0; level++){
+                long covered = Math.min(n, span(level + 1));
+                for(int l = level; l >= 1; l--){
+                    count += (covered + span(l + 1) - 1) / span(l + 1);
+                }
+                n -= covered;
+            }
+            return count;
+        }
+
+        @Override
+        int blockAt(int entry, int k, int previous){
+            int indexTable = pointer(entry, 0);
+            if(k < direct()){
+                return Disk.getInt(indexTable, k * Disk.POINTER_SIZE);
+            }
+            long rest = k - direct();
+            for(int level = 1; level <= LEVELS; level++){
+                if(rest < span(level + 1)){
+                    // one pointer read per level
+                    int block = Disk.getInt(indexTable, (direct() + level - 1) * Disk.POINTER_SIZE);
+                    for(int l = level; l >= 1; l--){
+                        block = Disk.getInt(block, (int) (rest / span(l)) * Disk.POINTER_SIZE);
+                        rest %= span(l);
+                    }
+                    return block;
+                }
+                rest -= span(level + 1);
+            }
+            throw new IllegalArgumentException("Block " + k + " is past the largest file.");
+        }
+
+        // store the pointer to data block k, allocating and clearing indirect blocks on the way;
+        // false if an indirect block is needed and the disk is full
+        boolean setBlockAt(int indexTable, long k, int block){
+            return setBlockAt(indexTable, k, block, () -> allocateBlocks(1));
+        }
+
+        // the same, with indirect blocks taken from spare
+        boolean setBlockAt(int indexTable, long k, int block, IntSupplier spare){
+            if(k < direct()){
+                Disk.putInt(indexTable, (int) k * Disk.POINTER_SIZE, block);
+                return true;
+            }
+            long rest = k - direct();
+            for(int level = 1; level <= LEVELS; level++){
+                if(rest < span(level + 1)){
+                    int parent = indexTable;
+                    int offset = (direct() + level - 1) * Disk.POINTER_SIZE;
+                    for(int l = level; l >= 1; l--){
+                        int child = Disk.getInt(parent, offset);
+                        if(child == 0){
+                            child = spare.getAsInt();
+                            if(child == -1){
+                                return false;
+                            }
+                            Disk.fill(child, 0, Disk.BLOCKS_SIZE, (byte) 0);
+                            Disk.keepResident(child, true);
+                            Disk.putInt(parent, offset, child);
+                        }
+                        parent = child;
+                        offset = (int) (rest / span(l)) * Disk.POINTER_SIZE;
+                        rest %= span(l);
+                    }
+                    Disk.putInt(parent, offset, block);
+                    return true;
+                }
+                rest -= span(level + 1);
+            }
+            throw new IllegalArgumentException("Block " + k + " is past the largest file.");
+        }
+
+        @Override
+        // add data blocks to the index, indirect blocks are added as they are reached
+        boolean grow(int entry, long blocks){
+            long count = blockCount(entry);
+            if(blocks <= count){
+                return true;
+            }
+            if(blocks > maxBlocks() || blocks - count > numBlockFree()){
+                return false;
+            }
+            int indexTable = pointer(entry, 0);
+            for(long k = count; k < blocks; k++){
+                int block = allocateBlocks(1);
+                if(block == -1 || !setBlockAt(indexTable, k, block)){
+                    // give back the data blocks added so far, empty indirect blocks stay with the file
+                    if(block != -1){
+                        Disk.setUsed(block, false);
+                    }
+                    for(long j = count; j < k; j++){
+                        Disk.setUsed(blockAt(entry, (int) j, -1), false);
+                        setBlockAt(indexTable, j, 0);
+                    }
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        // the data is copied before any pointer changes, so each pointer reaches the old or the new copy;
+        // the indirect blocks are already there and are rewritten in place
+        void relocate(int entry, int[] blocks, int start){
+            for(int k = 0; k < blocks.length; k++){
+                Disk.write(start + k, Disk.view(blocks[k]));
+            }
+            int indexTable = pointer(entry, 0);
+            for(int k = 0; k < blocks.length; k++){
+                setBlockAt(indexTable, k, start + k);
+            }
+            freeMoved(blocks, start);
+        }
+
+        @Override
+        // the index block, the data blocks and the indirect blocks
+        long blocksFor(long size){
+            long blocks = (size + Disk.BLOCKS_SIZE - 1) / Disk.BLOCKS_SIZE;
+            return blocks > maxBlocks() ? Long.MAX_VALUE : 1 + blocks + indirectBlocks(blocks);
+        }
+
+        @Override
+        // the reserved blocks are the index block, then the data blocks, then the indirect blocks
+        byte[] build(String name, FileChannel channel, long size, int[] blocks) throws IOException {
+            long count = (size + Disk.BLOCKS_SIZE - 1) / Disk.BLOCKS_SIZE;
+            int indexTable = blocks[0];
+            int[] indirect = {1 + (int) count};
+            Disk.fill(indexTable, 0, Disk.BLOCKS_SIZE, (byte) 0);
+            Disk.pin(indexTable);
+            try{
+                for(int k = 0; k < count; k++){
+                    setBlockAt(indexTable, k, blocks[1 + k], () -> blocks[indirect[0]++]);
+                    Disk.write(blocks[1 + k], readChunk(channel, (int) Math.min(Disk.BLOCKS_SIZE, size - (long) Disk.BLOCKS_SIZE * k)));
+                }
+            } finally {
+                Disk.unpin(indexTable);
+            }
+            Disk.keepResident(indexTable, true);
+            return encodeEntry(name, size, indexTable);
+        }
+
+        @Override
+        // every block number is in the index, so the reads of the whole window are issued at once
+        void prefetch(int entry, int k, int block, long from, long to){
+            for(long i = from; i < to; i++){
+                int b = blockAt(entry, (int) i, -1);
+                prefetchers.execute(() -> Disk.prefetch(b));
+            }
+        }
+
+        // clear and free a block and, for an indirect block, every block under it
+        static void freeTree(int block, int level){
+            if(level > 0){
+                for(int i = 0; i < perBlock(); i++){
+                    int child = Disk.getInt(block, i * Disk.POINTER_SIZE);
+                    if(child != 0){
+                        freeTree(child, level - 1);
+                    }
+                }
+                Disk.keepResident(block, false);
+            }
+            Disk.free(block);
+        }
+
+        // free the index block and every block it reaches
+        static void freeIndex(int indexTable){
+            for(int i = 0; i < perBlock(); i++){
+                int child = Disk.getInt(indexTable, i * Disk.POINTER_SIZE);
+                if(child != 0){
+                    freeTree(child, Math.max(0, i - direct() + 1));
+                }
+            }
+            Disk.keepResident(indexTable, false);
+            Disk.free(indexTable);
+        }
+
+        @Override
+        // index blocks are read on every access, keep them cached
+        void mount(){
+            super.mount();
+            for(int entry : entries()){
+                Disk.keepResident(pointer(entry, 0), true);
+            }
+        }
+
+        @Override
+        // version 1 index blocks held only direct pointers, move the ones past direct() to a single indirect block
+        boolean upgradeEntry(int entry){
+            long blocks = (fileSize(entry) + Disk.BLOCKS_SIZE - 1) / Disk.BLOCKS_SIZE;
+            if(blocks <= direct()){
+                return true;
+            }
+            int indexTable = pointer(entry, 0);
+            int single = allocateBlocks(1);
+            if(single == -1){
+                return false;
+            }
+            Disk.fill(single, 0, Disk.BLOCKS_SIZE, (byte) 0);
+            for(int k = direct(); k < blocks; k++){
+                Disk.putInt(single, (k - direct()) * Disk.POINTER_SIZE, Disk.getInt(indexTable, k * Disk.POINTER_SIZE));
+                Disk.putInt(indexTable, k * Disk.POINTER_SIZE, 0);
+            }
+            Disk.putInt(indexTable, direct() * Disk.POINTER_SIZE, single);
+            return true;
+        }
+
+        @Override
+        boolean create(String fileName) {
+            String[] name = fileName.split("\\.");
+            try(FileChannel channel = FileChannel.open(Paths.get(fileName))){
+                if(!canAdd(name[0])){
+                    return false;
+                }
+                // calculate the number of blocks
+                long fileSize = channel.size();
+                long blockNeed = (fileSize + Disk.BLOCKS_SIZE - 1) / Disk.BLOCKS_SIZE;
+                if(blockNeed > maxBlocks()){
+                    System.out.println("File is too large for the index blocks.");
+                    return false;
+                }
+                int indexTable = (blockNeed + 1 + indirectBlocks(blockNeed)) <= numBlockFree() ? allocateBlocks(1) : -1;
+                if(indexTable != -1){
+                    // clear the reserved index block, it stays cached while it is filled
+                    Disk.fill(indexTable, 0, Disk.BLOCKS_SIZE, (byte) 0);
+                    Disk.pin(indexTable);
+                    // write data file to disk as it is read
+                    try {
+                        for(long k = 0; k < blockNeed; k++){
+                            int currentBlock = allocateBlocks(1);
+                            if(currentBlock == -1){
+                                throw new IOException("Not enough space.");
+                            }
+                            if(!setBlockAt(indexTable, k, currentBlock)){
+                                Disk.setUsed(currentBlock, false);
+                                throw new IOException("Not enough space.");
+                            }
+                            long offset = Disk.BLOCKS_SIZE * k;
+                            Disk.write(currentBlock, readChunk(channel, (int) Math.min(Disk.BLOCKS_SIZE, fileSize - offset)));
+                        }
+                        // add file information to FAT
+                        String error = addEntry(name[0], encodeEntry(name[0], fileSize, indexTable));
+                        if(error != null){
+                            throw new IOException(error);
+                        }
+                        Disk.keepResident(indexTable, true);
+                    } catch (IOException e){
+                        // roll back every block reached from the index block
+                        freeIndex(indexTable);
+                        throw e;
+                    } finally {
+                        Disk.unpin(indexTable);
+                    }
+                    return true;
+                } else {
+                    System.out.println("Not enough space.");
+                    return false;
+                }
+            } catch (NoSuchFileException e){
+                System.err.println("No such file in current directory.");
+            } catch (IOException e){
+                System.err.println("Could not copy " + fileName + ": " + e.getMessage());
+            }
+            return false;
+        }
+
+        @Override
+        void delete(String name) {
+            // look up the file in the directory
+            int entry = lookup(name);
+            if(entry == -1){
+                System.out.println("File not found!");
+                return;
+            }
+            int indexTable = pointer(entry, 0);
+            // update FAT
+            removeEntry(name, entry);
+            // delete file data, indirect blocks and the index block
+            freeIndex(indexTable);
+        }
+
+        @Override
+        public void displayFAT(byte[] data) {
+            for(int i = 0; i < entriesPerBlock; i++) {
+                byte[] parts = Arrays.copyOfRange(data, entrySize * i, (entrySize * (i + 1)));
+                if (inUse(parts, 0)) {
+                    System.out.println(extractName(parts, 0) + " " + extractStartBlock(parts));
+                }
+            }
+        }
+    }
+
+    // the namespace: every directory is a B-tree on the disk keyed by a 64-bit hash of the names in it, one node
+    // per block, so a name is found with one block read per level instead of a scan of the FAT
+    // node: kind(1) unused(1) count(2) first child(4), little-endian, then
+    //   inner node: count separators of hash(8) child(4), a name hashing at or above a separator is under its child
+    //   leaf: count records of hash(8) reference(4) type(1) length(1) name(length), in hash order
+    // a reference is the FAT address of a file's entry or the root node of a subdirectory; records with the same
+    // hash are never split over two leaves, and a leaf emptied by deletes is kept until its directory is removed
+    static class DirectoryTree {
+        static final byte LEAF = 1;
+        static final byte INNER = 2;
+        static final byte FILE = 0;
+        static final byte DIRECTORY = 1;
+        static final byte ANY = -1;
+        static final int HEADER = 8;
+        static final int SEPARATOR = 12;
+        static final int RECORD = 14;
+        // offset of the root node of "/" in the format header, after the start of the chained table
+        static final int ROOT = 6;
+
+        // lookups share the tree, inserts and removes hold it exclusively
+        final ReadWriteLock lock = new ReentrantReadWriteLock();
+        // one node at a time for lookups, so they allocate nothing
+        final ThreadLocal<byte[]> nodes = new ThreadLocal<>();
+        // files already found or added, path -> FAT address, so looking up a known file reads no node;
+        // inserts and removes of files keep it current and mount empties it
+        final Map<String, Integer> files = new ConcurrentHashMap<>();
+        int root;
+        // set by a split: hash of the first name in the new node
+        long split;
+        // blocks reserved for the splits of one insert, and the root node of the directory it goes into
+        int[] spare;
+        int taken;
+        int top;
+
+        // longest name a leaf is sure to hold two of
+        static int maxName(){
+            return Math.min(255, (Disk.BLOCKS_SIZE - HEADER) / 2 - RECORD);
+        }
+
+        // true if every name in the path is 1 to maxName() bytes, lowercase and not . or ..
+        static boolean isValid(String path){
+            String names = path.startsWith("/") ? path.substring(1) : path;
+            if(names.isEmpty()){
+                return false;
+            }
+            for(String name : names.split("/", -1)){
+                if(name.isEmpty() || name.equals(".") || name.equals("..") || !name.equals(name.toLowerCase())
+                        || name.getBytes(StandardCharsets.UTF_8).length > maxName()){
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // FNV-1a of the characters path[from, to)
+        static long hash(String path, int from, int to){
+            long hash = 0xcbf29ce484222325L;
+            for(int i = from; i < to; i++){
+                hash = (hash ^ path.charAt(i)) * 0x100000001b3L;
+            }
+            return hash;
+        }
+
+        // find the root directory, or make an empty one on a disk that has none
+        void mount(){
+            files.clear();
+            root = Disk.getInt(0, ROOT);
+            if(root == -1){
+                root = allocateBlock(Disk.firstDataBlock());
+                if(root == -1){
+                    throw new IllegalStateException("There is no room for the root directory.");
+                }
+                Disk.writeLogged(root, node(LEAF));
+                Disk.putInt(0, ROOT, root);
+            }
+        }
+
+        // an empty node
+        static byte[] node(byte kind){
+            byte[] data = new byte[Disk.BLOCKS_SIZE];
+            data[0] = kind;
+            return data;
+        }
+
+        static int count(byte[] data){
+            return (data[2] & 0xff) | (data[3] & 0xff) << 8;
+        }
+
+        static void setCount(byte[] data, int count){
+            data[2] = (byte) count;
+            data[3] = (byte) (count >> 8);
+        }
+
+        static long hashAt(byte[] data, int p){
+            return (long) Disk.LONGS.get(data, p);
+        }
+
+        static int intAt(byte[] data, int p){
+            return (int) Disk.INTS.get(data, p);
+        }
+
+        // bytes taken by the record at p
+        static int recordSize(byte[] data, int p){
+            return RECORD + (data[p + 13] & 0xff);
+        }
+
+        // the child of an inner node that holds a hash
+        static int child(byte[] data, long hash){
+            int child = intAt(data, 4);
+            for(int i = 0, p = HEADER; i < count(data) && hashAt(data, p) <= hash; i++, p += SEPARATOR){
+                child = intAt(data, p + 8);
+            }
+            return child;
+        }
+
+        // true if the record at p is named path[from, to)
+        static boolean matches(byte[] data, int p, String path, int from, int to){
+            int length = data[p + 13] & 0xff;
+            int i = 0;
+            for(int c = from; c < to; c++){
+                char ch = path.charAt(c);
+                if(ch >= 0x80){
+                    return new String(data, p + RECORD, length, StandardCharsets.UTF_8).contentEquals(path.subSequence(from, to));
+                }
+                if(i == length || data[p + RECORD + i++] != ch){
+                    return false;
+                }
+            }
+            return i == length;
+        }
+
+        // the lookup buffer of this thread
+        byte[] buffer(){
+            byte[] data = nodes.get();
+            if(data == null || data.length != Disk.BLOCKS_SIZE){
+                data = new byte[Disk.BLOCKS_SIZE];
+                nodes.set(data);
+            }
+            return data;
+        }
+
+        // reference of the file or directory at a path, -1 if there is none
+        int find(String path, byte type){
+            if(type == FILE){
+                Integer entry = files.get(AllocationMethod.canonical(path));
+                if(entry != null){
+                    return entry;
+                }
+            }
+            lock.readLock().lock();
+            try{
+                int reference = resolve(path, path.length(), type);
+                // added under the read lock, so a remove cannot come between the lookup and this
+                if(type == FILE && reference != -1){
+                    files.put(AllocationMethod.canonical(path), reference);
+                }
+                return reference;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        // root node of the directory a path is in, -1 if there is none
+        int parent(String path){
+            lock.readLock().lock();
+            try{
+                return resolve(path, Math.max(path.lastIndexOf('/'), 0), DIRECTORY);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        // follow the names in path[0, end) from the root, the last one has to be of a type
+        int resolve(String path, int end, byte type){
+            int directory = root;
+            int from = path.startsWith("/") ? 1 : 0;
+            while(from < end){
+                int slash = path.indexOf('/', from);
+                boolean last = slash == -1 || slash >= end;
+                int to = last ? end : slash;
+                int reference = search(directory, path, from, to, last ? type : DIRECTORY);
+                if(last || reference == -1){
+                    return reference;
+                }
+                directory = reference;
+                from = slash + 1;
+            }
+            // the root, or a path ending in a slash
+            return type == FILE ? -1 : directory;
+        }
+
+        // reference of the record named path[from, to) in the directory at node, -1 if there is none of the type
+        int search(int node, String path, int from, int to, byte type){
+            long hash = hash(path, from, to);
+            byte[] data = buffer();
+            Disk.read(node, data);
+            Metrics.FAT_PROBES.increment();
+            while(data[0] == INNER){
+                Disk.read(child(data, hash), data);
+                Metrics.FAT_PROBES.increment();
+            }
+            for(int i = 0, p = HEADER; i < count(data); i++, p += recordSize(data, p)){
+                if(hashAt(data, p) == hash && matches(data, p, path, from, to)){
+                    return type == ANY || data[p + 12] == type ? intAt(data, p + 8) : -1;
+                }
+            }
+            return -1;
+        }
+
+        // add a record for a new file or directory, false if its directory does not exist, the name is taken
+        // or there is no room for the nodes a split needs
+        boolean insert(String path, int reference, byte type){
+            lock.writeLock().lock();
+            try{
+                int slash = path.lastIndexOf('/');
+                int parent = resolve(path, Math.max(slash, 0), DIRECTORY);
+                if(parent == -1 || search(parent, path, slash + 1, path.length(), ANY) != -1){
+                    return false;
+                }
+                byte[] name = path.substring(slash + 1).getBytes(StandardCharsets.UTF_8);
+                long hash = hash(path, slash + 1, path.length());
+                ByteBuffer record = ByteBuffer.allocate(RECORD + name.length).order(ByteOrder.LITTLE_ENDIAN);
+                record.putLong(hash).putInt(reference).put(type).put((byte) name.length).put(name);
+                // the blocks the splits take are all taken before anything changes, most inserts need none
+                if(!reserve(splits(parent, hash, record.capacity()), parent)){
+                    return false;
+                }
+                try{
+                    top = parent;
+                    insert(parent, hash, record.array());
+                    if(type == FILE){
+                        files.put(AllocationMethod.canonical(path), reference);
+                    }
+                } finally {
+                    while(taken < spare.length){
+                        Disk.setUsed(spare[taken++], false);
+                    }
+                }
+                return true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        // blocks an insert of a record of length bytes under a directory takes: one for every full node on the
+        // way to the leaf, from the leaf up to the first node with room for a separator, and one more when
+        // the root of the directory splits
+        int splits(int node, long hash, int length){
+            List<byte[]> path = new ArrayList<>();
+            byte[] data = Disk.read(node);
+            for(; data[0] == INNER; data = Disk.read(child(data, hash))){
+                path.add(data);
+            }
+            int end = HEADER;
+            for(int i = 0; i < count(data); i++){
+                end += recordSize(data, end);
+            }
+            if(end + length <= Disk.BLOCKS_SIZE){
+                return 0;
+            }
+            int splits = 1;
+            for(int level = path.size() - 1; level >= 0; level--){
+                if(HEADER + SEPARATOR * (count(path.get(level)) + 1) <= Disk.BLOCKS_SIZE){
+                    return splits;
+                }
+                splits++;
+            }
+            return splits + 1;
+        }
+
+        // take count free blocks near a node for splits, false if the disk does not have them
+        boolean reserve(int count, int near){
+            spare = new int[count];
+            taken = 0;
+            for(int i = 0; i < count; i++){
+                spare[i] = allocateBlock(near);
+                if(spare[i] == -1){
+                    for(int k = 0; k < i; k++){
+                        Disk.setUsed(spare[k], false);
+                    }
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // insert a record under node, returns the new node if it split with its first hash in split, else -1
+        int insert(int node, long hash, byte[] record){
+            byte[] data = Disk.read(node);
+            int count = count(data);
+            if(data[0] == INNER){
+                int i = 0;
+                while(i < count && hashAt(data, HEADER + SEPARATOR * i) <= hash){
+                    i++;
+                }
+                int sibling = insert(i == 0 ? intAt(data, 4) : intAt(data, HEADER + SEPARATOR * (i - 1) + 8), hash, record);
+                if(sibling == -1){
+                    return -1;
+                }
+                // the separators with the new one at i
+                byte[] separators = new byte[SEPARATOR * (count + 1)];
+                System.arraycopy(data, HEADER, separators, 0, SEPARATOR * i);
+                Disk.LONGS.set(separators, SEPARATOR * i, split);
+                Disk.INTS.set(separators, SEPARATOR * i + 8, sibling);
+                System.arraycopy(data, HEADER + SEPARATOR * i, separators, SEPARATOR * (i + 1), SEPARATOR * (count - i));
+                if(HEADER + separators.length <= Disk.BLOCKS_SIZE){
+                    System.arraycopy(separators, 0, data, HEADER, separators.length);
+                    setCount(data, count + 1);
+                    Disk.writeLogged(node, data);
+                    return -1;
+                }
+                // the middle separator moves up, its child becomes the first child of the new node
+                int middle = (count + 1) / 2;
+                byte[] left = node(INNER);
+                System.arraycopy(data, 4, left, 4, 4);
+                System.arraycopy(separators, 0, left, HEADER, SEPARATOR * middle);
+                setCount(left, middle);
+                byte[] right = node(INNER);
+                Disk.INTS.set(right, 4, intAt(separators, SEPARATOR * middle + 8));
+                System.arraycopy(separators, SEPARATOR * (middle + 1), right, HEADER, SEPARATOR * (count - middle));
+                setCount(right, count - middle);
+                split = hashAt(separators, SEPARATOR * middle);
+                return write(node, left, right);
+            }
+            // the records with the new one after those of the same or a lower hash
+            int at = -1;
+            int p = HEADER;
+            for(int i = 0; i < count; i++){
+                if(at == -1 && hashAt(data, p) > hash){
+                    at = p;
+                }
+                p += recordSize(data, p);
+            }
+            if(at == -1){
+                at = p;
+            }
+            if(p + record.length <= Disk.BLOCKS_SIZE){
+                System.arraycopy(data, at, data, at + record.length, p - at);
+                System.arraycopy(record, 0, data, at, record.length);
+                setCount(data, count + 1);
+                Disk.writeLogged(node, data);
+                return -1;
+            }
+            byte[] records = new byte[p - HEADER + record.length];
+            System.arraycopy(data, HEADER, records, 0, at - HEADER);
+            System.arraycopy(record, 0, records, at - HEADER, record.length);
+            System.arraycopy(data, at, records, at - HEADER + record.length, p - at);
+            int[] offsets = new int[count + 2];
+            for(int i = 0, q = 0; i <= count; i++){
+                offsets[i] = q;
+                q += RECORD + (records[q + 13] & 0xff);
+            }
+            offsets[count + 1] = records.length;
+            // split where the halves are closest in size without parting records of one hash
+            int best = -1;
+            for(int i = 1; i <= count; i++){
+                int larger = Math.max(offsets[i], records.length - offsets[i]);
+                if(HEADER + larger <= Disk.BLOCKS_SIZE && hashAt(records, offsets[i]) != hashAt(records, offsets[i - 1])
+                        && (best == -1 || larger < Math.max(offsets[best], records.length - offsets[best]))){
+                    best = i;
+                }
+            }
+            if(best == -1){
+                throw new IllegalStateException("Too many names in a directory have the same hash.");
+            }
+            byte[] left = node(LEAF);
+            System.arraycopy(records, 0, left, HEADER, offsets[best]);
+            setCount(left, best);
+            byte[] right = node(LEAF);
+            System.arraycopy(records, offsets[best], right, HEADER, records.length - offsets[best]);
+            setCount(right, count + 1 - best);
+            split = hashAt(records, offsets[best]);
+            return write(node, left, right);
+        }
+
+        // write the halves of a split node, the right one to a spare block; the root of a directory keeps its
+        // block, which the parent directory points to, so its left half goes to a spare block as well and the
+        // root is written once, as an inner node over the two halves, and nothing is left to add above it
+        int write(int node, byte[] left, byte[] right){
+            int sibling = spare[taken++];
+            Disk.writeLogged(sibling, right);
+            if(node != top){
+                Disk.writeLogged(node, left);
+                return sibling;
+            }
+            int moved = spare[taken++];
+            Disk.writeLogged(moved, left);
+            byte[] data = node(INNER);
+            setCount(data, 1);
+            Disk.INTS.set(data, 4, moved);
+            Disk.LONGS.set(data, HEADER, split);
+            Disk.INTS.set(data, HEADER + 8, sibling);
+            Disk.writeLogged(node, data);
+            return -1;
+        }
+
+        // drop the record of a file or a directory, false if there is none of the type
+        boolean remove(String path, byte type){
+            lock.writeLock().lock();
+            try{
+                int slash = path.lastIndexOf('/');
+                int node = resolve(path, Math.max(slash, 0), DIRECTORY);
+                if(node == -1){
+                    return false;
+                }
+                long hash = hash(path, slash + 1, path.length());
+                byte[] data = Disk.read(node);
+                while(data[0] == INNER){
+                    node = child(data, hash);
+                    data = Disk.read(node);
+                }
+                int end = HEADER;
+                for(int i = 0; i < count(data); i++){
+                    end += recordSize(data, end);
+                }
+                for(int i = 0, p = HEADER; i < count(data); i++, p += recordSize(data, p)){
+                    if(hashAt(data, p) == hash && matches(data, p, path, slash + 1, path.length())){
+                        if(data[p + 12] != type){
+                            return false;
+                        }
+                        int size = recordSize(data, p);
+                        System.arraycopy(data, p + size, data, p, end - p - size);
+                        Arrays.fill(data, end - size, end, (byte) 0);
+                        setCount(data, count(data) - 1);
+                        Disk.writeLogged(node, data);
+                        files.remove(AllocationMethod.canonical(path));
+                        return true;
+                    }
+                }
+                return false;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        // make an empty directory, false if its parent does not exist, the name is taken or the disk is full
+        boolean make(String path){
+            lock.writeLock().lock();
+            try{
+                int parent = resolve(path, Math.max(path.lastIndexOf('/'), 0), DIRECTORY);
+                int block = parent == -1 ? -1 : allocateBlock(parent);
+                if(block == -1){
+                    return false;
+                }
+                Disk.writeLogged(block, node(LEAF));
+                if(!insert(path, block, DIRECTORY)){
+                    Disk.setUsed(block, false);
+                    return false;
+                }
+                return true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        // true if no leaf under node holds a record
+        boolean isEmpty(int node){
+            byte[] data = Disk.read(node);
+            if(data[0] == LEAF){
+                return count(data) == 0;
+            }
+            if(!isEmpty(intAt(data, 4))){
+                return false;
+            }
+            for(int i = 0; i < count(data); i++){
+                if(!isEmpty(intAt(data, HEADER + SEPARATOR * i + 8))){
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // point the files under node at the FAT addresses they moved to, after the FAT was repacked
+        void renumber(int node, Map<Integer, Integer> moved){
+            byte[] data = Disk.read(node);
+            if(data[0] == INNER){
+                renumber(intAt(data, 4), moved);
+                for(int i = 0; i < count(data); i++){
+                    renumber(intAt(data, HEADER + SEPARATOR * i + 8), moved);
+                }
+                return;
+            }
+            for(int i = 0, p = HEADER; i < count(data); i++, p += recordSize(data, p)){
+                if(data[p + 12] == DIRECTORY){
+                    renumber(intAt(data, p + 8), moved);
+                } else if(moved.containsKey(intAt(data, p + 8))){
+                    Disk.INTS.set(data, p + 8, (int) moved.get(intAt(data, p + 8)));
+                }
+            }
+            Disk.writeLogged(node, data);
+            files.clear();
+        }
+
+        // give back the blocks of the tree under node
+        void free(int node){
+            byte[] data = Disk.read(node);
+            if(data[0] == INNER){
+                free(intAt(data, 4));
+                for(int i = 0; i < count(data); i++){
+                    free(intAt(data, HEADER + SEPARATOR * i + 8));
+                }
+            }
+            Disk.free(node);
+        }
+
+        // paths of the files under a directory, or the names in it alone with the subdirectories ending in a slash
+        void walk(int node, String prefix, boolean recursive, List<String> names){
+            byte[] data = Disk.read(node);
+            if(data[0] == INNER){
+                walk(intAt(data, 4), prefix, recursive, names);
+                for(int i = 0; i < count(data); i++){
+                    walk(intAt(data, HEADER + SEPARATOR * i + 8), prefix, recursive, names);
+                }
+                return;
+            }
+            for(int i = 0, p = HEADER; i < count(data); i++, p += recordSize(data, p)){
+                String name = prefix + new String(data, p + RECORD, data[p + 13] & 0xff, StandardCharsets.UTF_8);
+                if(data[p + 12] == FILE){
+                    names.add(name);
+                } else if(recursive){
+                    walk(intAt(data, p + 8), name + "/", true, names);
+                } else {
+                    names.add(name + "/");
+                }
+            }
+        }
+
+        // names under a directory as walk() lists them, sorted; null if there is no such directory
+        List<String> list(String path, boolean recursive){
+            lock.readLock().lock();
+            try{
+                int node = resolve(path, path.length(), DIRECTORY);
+                if(node == -1){
+                    return null;
+                }
+                List<String> names = new ArrayList<>();
+                // a recursive walk lists paths from the root, a single directory its own names
+                String prefix = !recursive ? "" : path.startsWith("/") ? path.substring(1) : path;
+                walk(node, prefix.isEmpty() || prefix.endsWith("/") ? prefix : prefix + "/", recursive, names);
+                Collections.sort(names);
+                return names;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+
+    // reads a file block by block, handing out read-only views of the disk blocks
+    static class BlockChannel implements ReadableByteChannel {
+        final AllocationMethod method;
+        final int entry;
+        long remaining;
+        // current block, its position in the file, its bytes of file data and how many of them read() has left
+        int block = -1;
+        int k = -1;
+        int length;
+        int unread;
+        boolean open = true;
+        // read lock released on close, null when the caller holds the lock
+        final Lock lock;
+        // blocks loaded ahead of the reader, and the first block not yet handed to the prefetchers
+        final int window = Disk.prefetchWindow();
+        long prefetched;
+
+        BlockChannel(AllocationMethod method, int entry, Lock lock){
+            this.method = method;
+            this.entry = entry;
+            this.lock = lock;
+            this.remaining = method.fileSize(entry);
+        }
+
+        // the file data of the next block, null at the end of the file
+        ByteBuffer nextBlock() throws ClosedChannelException {
+            ensureOpen();
+            if(!advance()){
+                return null;
+            }
+            unread = 0;
+            ByteBuffer view = Disk.view(block);
+            view.limit(length);
+            return view;
+        }
+
+        // move to the next block, false at the end of the file
+        boolean advance(){
+            if(remaining == 0){
+                return false;
+            }
+            k++;
+            block = method.blockAt(entry, k, block);
+            // keep between half a window and a window of blocks loading ahead
+            long blocks = k + (remaining + method.blockData() - 1) / method.blockData();
+            if(window > 0 && k + window / 2 >= prefetched && prefetched < blocks){
+                long from = Math.max(k + 1, prefetched);
+                prefetched = Math.min(blocks, k + 1 + window);
+                if(from < prefetched){
+                    method.prefetch(entry, k, block, from, prefetched);
+                }
+            }
+            length = (int) Math.min(remaining, method.blockData());
+            remaining -= length;
+            unread = length;
+            return true;
+        }
+
+        @Override
+        // copies straight into dst, no view of the block is made
+        public int read(ByteBuffer dst) throws ClosedChannelException {
+            ensureOpen();
+            if(unread == 0 && !advance()){
+                return -1;
+            }
+            int count = Math.min(dst.remaining(), unread);
+            Disk.read(block, length - unread, dst, count);
+            unread -= count;
+            return count;
+        }
+
+        // the file is not read once its lock is released
+        void ensureOpen() throws ClosedChannelException {
+            if(!open){
+                throw new ClosedChannelException();
+            }
+        }
+
+        @Override
+        public boolean isOpen(){
+            return open;
+        }
+
+        @Override
+        public void close(){
+            if(open && lock != null){
+                lock.unlock();
+            }
+            open = false;
+        }
+    }
+
+    static int numBlockFree() {
+        return Disk.bitmap.numFree();
+    }
+
+    // reserve a run of free blocks
+    static int allocateBlocks(int blockNeed) {
+        return Disk.bitmap.allocateRun(blockNeed);
+    }
+
+    // reserve the blocks following a run, false if any of them is in use
+    static boolean allocateAt(int start, int length) {
+        return Disk.bitmap.allocateAt(start, length);
+    }
+
+    // reserve one free block, searching from a block onwards
+    static int allocateBlock(int from) {
+        return Disk.bitmap.allocate(from);
+    }
+
+    // extract file ending block from the second pointer
+    static String extractEndBlock(byte[] data){
+        return String.valueOf((int) Disk.INTS.get(data, 12));
+    }
+
+    // convert bytes to int
+    static int bytesToInt(byte[] byteArray) {
+        return bytesToInt(byteArray, 0, byteArray.length);
+    }
+
+    // convert the digits in data[from, to) to int without copying
+    static int bytesToInt(byte[] data, int from, int to) {
+        int value = 0;
+        boolean negative = false;
+        for(int i = from; i < to; i++){
+            if(data[i] == '-'){
+                negative = true;
+            } else if(data[i] >= '0' && data[i] <= '9'){
+                value = value * 10 + (data[i] - '0');
+            }
+        }
+        return negative ? -value : value;
+    }
+
+    // extract file name from the 8 bytes at from
+    static String extractName(byte[] data, int from){
+        byte fillSpace = 32;
+        byte[] name = new byte[8];
+        Arrays.fill(name, fillSpace);
+        for(int i = 0; i < name.length; i++){
+            if(data[from + i] != -1){
+                name[i] = data[from + i];
+            }
+        }
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    // extract file starting block from the first pointer
+    static String extractStartBlock(byte[] data){
+        return String.valueOf((int) Disk.INTS.get(data, 8));
+    }
+
+    // Factory method to create AllocationMethod based on user input
+    public static AllocationMethod createAllocationMethod(String method) {
+        switch (method.toLowerCase()) {
+            case "contiguous":
+                return new Contiguous();
+            case "chained":
+                return new Chained();
+            case "fat":
+                return new TableChained();
+            case "indexed":
+                return new Indexed();
+            default:
+                throw new IllegalArgumentException("Invalid allocation method: " + method);
+        }
+    }
+}
+
+class UserInterface {
+
+    FileSystem.AllocationMethod allocationMethod;
+    
+    public UserInterface(String allocationType) {
+        // Create the corresponding AllocationMethod based on user input
+        this.allocationMethod = FileSystem.createAllocationMethod(allocationType);
+    }
+
+    // check the names in a path
+    boolean isValid(String name){
+        return FileSystem.DirectoryTree.isValid(name);
+    }
+
+    void invalidName(){
+        System.out.println("File names should be up to " + FileSystem.DirectoryTree.maxName() + " characters, directories are separated by /.  Names should only have lowercase letters.");
+    }
+
+    // display file
+    void displayFile(String name){
+        allocationMethod.getData(name);
+    }
+
+    // display the free space bitmap
+    void displayBitmap(){
+        allocationMethod.displayBitmap();
+    }
+
+    // display a disk block
+    void displayBlock(int blockNum){
+        allocationMethod.displayBlock(blockNum);
+    }
+
+    // display the file allocation table
+    void displayFAT(){
+        for(int i = 0; i < Disk.FAT_BLOCKS; i++){
+            allocationMethod.displayFAT(Disk.read(i));
+        }
+    }
+
+    public void showMenu(){
+        Scanner in = new Scanner(System.in);
+        int userChoice = 0;
+        while(userChoice != 8) {
+            System.out.println();
+            System.out.println(
+                "1) Display a file\n" +
+                "2) Display the file table\n" +
+                "3) Display the free space bitmap\n" +
+                "4) Display a disk block\n" +
+                "5) Copy a file from the simulation to a file on the real system\n" +
+                "6) Copy a file from the real system to a file in the simulation\n" +
+                "7) Delete a file\n" +
+                "8) Exit"
+            );
+            System.out.print("Choice: ");
+            userChoice = in.nextInt();
+
+            // perform action based on user choice
+            switch (userChoice){
+                case 1:
+                    String fileName;
+                    in.nextLine();
+                    System.out.print("File name: ");
+                    fileName = in.nextLine();
+                    if(isValid(fileName)){
+                        displayFile(fileName);
+                    } else {
+                        invalidName();
+                    }
+
+                    break;
+
+                case 2:
+                    displayFAT();
+                    break;
+
+                case 3:
+                    displayBitmap();
+                    break;
+
+                case 4:
+                    System.out.print("Block Number: ");
+                    int blockNum = in.nextInt();
+                    displayBlock(blockNum);
+                    break;
+
+                case 5:
+                    String sourceName;
+                    String destName;
+                    in.nextLine();
+                    System.out.print("Copy from: ");
+                    sourceName = in.nextLine();
+                    System.out.print("Copy to: ");
+                    destName = in.nextLine();
+                    if(isValid(sourceName)){
+                        allocationMethod.copyFile(sourceName, destName);
+                    } else {
+                        invalidName();
+                    }
+                    break;
+
+                case 6:
+                    String sysFileName;
+                    in.nextLine();
+                    System.out.print("Copy from: ");
+                    sysFileName = in.nextLine();
+                    // Split the text based on ". "
+                    String[] fileNameparts = sysFileName.split("\\.");
+                    if(isValid(fileNameparts[0])) {
+                        if(allocationMethod.createFile(sysFileName)){
+                            System.out.println("Copy to: " + fileNameparts[0]);
+                            System.out.println("File " + sysFileName + " copied.");
+                        }
+                    } else {
+                        invalidName();
+                    }
+                    break;
+
+                case 7:
+                    String sFileName;
+                    in.nextLine();
+                    System.out.print("File name: ");
+                    sFileName = in.nextLine();
+                    if(isValid(sFileName)){
+                        allocationMethod.deleteFile(sFileName);
+                    } else {
+                        invalidName();
+                    }
+                    break;
+
+                case 8:
+                    Disk.flush();
+                    if(Disk.cacheStats() != null){
+                        System.out.println(Disk.cacheStats());
+                    }
+                    break;
+
+                default:
+                    System.err.println("Input is not recognize.");
+                    break;
+            }
+
+        }
+    }
+}
+
+// compacts a mounted disk while it is in use: files are moved towards the first data block one at a time,
+// each under its own write lock, which merges the free space, and a scattered chained or indexed file that
+// cannot move down is moved to a free run that holds it whole, so it is sequential;
+// directory blocks are never moved, so the holes around them stay and a file larger than the space between
+// two of them cannot slide past
+class Defragmenter implements Runnable {
+    // passes over the files, each pass can open room for files that could not move in the one before
+    static final int MAX_PASSES = 8;
+
+    final FileSystem.AllocationMethod allocationMethod;
+    // blocks moved per second, 0 for no limit
+    final int rate;
+    long moved;
+    int files;
+
+    Defragmenter(FileSystem.AllocationMethod allocationMethod, int rate) {
+        this.allocationMethod = allocationMethod;
+        this.rate = rate;
+    }
+
+    public void run() {
+        System.out.println("Before: " + fragmentation(allocationMethod));
+        long started = System.nanoTime();
+        try {
+            boolean progress = true;
+            for (int pass = 0; progress && pass < MAX_PASSES; pass++) {
+                progress = false;
+                for (String name : byFirstBlock()) {
+                    int count = allocationMethod.defragment(name);
+                    if (count > 0) {
+                        progress = true;
+                        moved += count;
+                        files++;
+                        throttle(started);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("Moved " + moved + " blocks in " + files + " moves.");
+        System.out.println("After: " + fragmentation(allocationMethod));
+    }
+
+    // files in the order of their first block, so the ones at the front move first
+    List<String> byFirstBlock() {
+        Map<String, Integer> first = new HashMap<>();
+        for (String name : allocationMethod.list()) {
+            int[] blocks = allocationMethod.blocks(name);
+            if (blocks != null && blocks.length > 0) {
+                first.put(name, blocks[0]);
+            }
+        }
+        List<String> names = new ArrayList<>(first.keySet());
+        names.sort(Comparator.comparing(first::get));
+        return names;
+    }
+
+    // sleep until the blocks moved so far fit the rate
+    void throttle(long started) throws InterruptedException {
+        if (rate > 0) {
+            long ahead = moved * 1_000_000_000L / rate - (System.nanoTime() - started);
+            if (ahead > 0) {
+                Thread.sleep(ahead / 1_000_000, (int) (ahead % 1_000_000));
+            }
+        }
+    }
+
+    // share of the free blocks outside the largest free run, and block runs per file (1 when every file is sequential)
+    static String fragmentation(FileSystem.AllocationMethod allocationMethod) {
+        return String.format("free space %.1f%% fragmented (%d free, largest run %d), %.2f extents per file",
+                Metrics.freeFragmentation(), Disk.bitmap.numFree(), Disk.bitmap.largestRun(), extentsPerFile(allocationMethod));
+    }
+
+    // block runs per file, 0 when no file has data
+    static double extentsPerFile(FileSystem.AllocationMethod allocationMethod) {
+        int fileCount = 0;
+        long extents = 0;
+        for (String name : allocationMethod.list()) {
+            int[] blocks = allocationMethod.blocks(name);
+            if (blocks == null || blocks.length == 0) {
+                continue;
+            }
+            fileCount++;
+            extents++;
+            for (int k = 1; k < blocks.length; k++) {
+                if (blocks[k] != blocks[k - 1] + 1) {
+                    extents++;
+                }
+            }
+        }
+        return fileCount == 0 ? 0.0 : (double) extents / fileCount;
+    }
+}
+
+// runs file system commands without the menu, one per line:
+//   import <file>..., export <name> <file>, cat <name>, rm <name>, ls [directory], stat <name>, metrics,
+//   mkdir <directory>, rmdir <directory>, defrag [blocks per second], snapshot <name>, restore <name>, drop <name>
+// names are paths from the root directory, a/b/c
+// the operations can also be called directly, all output is buffered until flush
+class Batch {
+    final FileSystem.AllocationMethod allocationMethod;
+    final PrintStream out;
+    // snapshots taken by name
+    final Map<String, Disk.Snapshot> snapshots = new HashMap<>();
+    int commands;
+    int failed;
+
+    Batch(FileSystem.AllocationMethod allocationMethod, PrintStream out) {
+        this.allocationMethod = allocationMethod;
+        this.out = out;
+    }
+
+    // run the commands read from in, messages printed by the file system go to the same buffer
+    void run(BufferedReader in) throws IOException {
+        PrintStream console = System.out;
+        System.setOut(out);
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    execute(line);
+                }
+            }
+            out.println(commands + " commands, " + failed + " failed");
+            if (Disk.cacheStats() != null) {
+                out.println(Disk.cacheStats());
+            }
+        } finally {
+            out.flush();
+            System.setOut(console);
+        }
+    }
+
+    // run one command line
+    boolean execute(String line) {
+        String[] args = line.trim().split("\\s+");
+        boolean done;
+        switch (args[0]) {
+            case "import":
+                done = args.length > 2 ? importFiles(Arrays.copyOfRange(args, 1, args.length)) : arguments(args, 1) && importFile(args[1]);
+                break;
+            case "export":
+                done = arguments(args, 2) && exportFile(args[1], args[2]);
+                break;
+            case "cat":
+                done = arguments(args, 1) && cat(args[1]);
+                break;
+            case "rm":
+                done = arguments(args, 1) && remove(args[1]);
+                break;
+            case "ls":
+                done = args.length == 2 ? listDirectory(args[1]) : arguments(args, 0) && list();
+                break;
+            case "mkdir":
+                done = arguments(args, 1) && validName(args[1]) && allocationMethod.makeDirectory(args[1]);
+                break;
+            case "rmdir":
+                done = arguments(args, 1) && allocationMethod.removeDirectory(args[1]);
+                break;
+            case "stat":
+                done = arguments(args, 1) && stat(args[1]);
+                break;
+            case "snapshot":
+                done = arguments(args, 1) && snapshot(args[1]);
+                break;
+            case "restore":
+                done = arguments(args, 1) && restore(args[1]);
+                break;
+            case "drop":
+                done = arguments(args, 1) && drop(args[1]);
+                break;
+            case "metrics":
+                done = arguments(args, 0) && metrics();
+                break;
+            case "defrag":
+                done = (args.length == 1 || arguments(args, 1)) && defragment(args.length == 2 ? args[1] : "0");
+                break;
+            default:
+                out.println("Unknown command: " + args[0]);
+                done = false;
+                break;
+        }
+        commands++;
+        if (!done) {
+            failed++;
+        }
+        return done;
+    }
+
+    boolean arguments(String[] args, int count) {
+        if (args.length != count + 1) {
+            out.println("Wrong number of arguments: " + String.join(" ", args));
+            return false;
+        }
+        return true;
+    }
+
+    // copy a file from the current directory onto the disk
+    boolean importFile(String fileName) {
+        return validName(fileName) && allocationMethod.createFile(fileName);
+    }
+
+    // copy several files at once, true if all of them were imported
+    boolean importFiles(String[] fileNames) {
+        List<String> valid = new ArrayList<>();
+        for (String fileName : fileNames) {
+            if (validName(fileName)) {
+                valid.add(fileName);
+            }
+        }
+        return allocationMethod.createFiles(valid).size() == fileNames.length;
+    }
+
+    boolean validName(String fileName) {
+        String name = fileName.split("\\.")[0];
+        if (!FileSystem.DirectoryTree.isValid(name)) {
+            out.println("Invalid file name: " + fileName);
+            return false;
+        }
+        return true;
+    }
+
+    // copy a file from the disk to the current directory, creating the destination if needed
+    boolean exportFile(String name, String destName) {
+        if (allocationMethod.lookup(name) == -1) {
+            out.println("File not found!");
+            return false;
+        }
+        try {
+            Path dest = Paths.get(destName);
+            if (Files.notExists(dest)) {
+                Files.createFile(dest);
+            }
+        } catch (IOException e) {
+            out.println("Could not create " + destName + ": " + e.getMessage());
+            return false;
+        }
+        allocationMethod.copyFile(name, destName);
+        return true;
+    }
+
+    // write the raw content of a file
+    boolean cat(String name) {
+        try (FileSystem.BlockChannel channel = allocationMethod.open(name)) {
+            byte[] data = new byte[Disk.BLOCKS_SIZE];
+            ByteBuffer block;
+            while ((block = channel.nextBlock()) != null) {
+                int length = block.remaining();
+                block.get(data, 0, length);
+                out.write(data, 0, length);
+            }
+            return true;
+        } catch (FileNotFoundException e) {
+            out.println("File not found!");
+            return false;
+        } catch (IOException e) {
+            // the channel is not closed before the try block ends
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    boolean remove(String name) {
+        if (allocationMethod.lookup(name) == -1) {
+            out.println("File not found!");
+            return false;
+        }
+        allocationMethod.deleteFile(name);
+        return true;
+    }
+
+    // print each file with its size
+    boolean list() {
+        for (String name : allocationMethod.list()) {
+            out.println(name + " " + allocationMethod.size(name));
+        }
+        return true;
+    }
+
+    // print the names in one directory, files with their size
+    boolean listDirectory(String path) {
+        List<String> names = allocationMethod.list(path);
+        if (names == null) {
+            out.println("No such directory.");
+            return false;
+        }
+        String prefix = path.isEmpty() || path.endsWith("/") ? path : path + "/";
+        for (String name : names) {
+            out.println(name.endsWith("/") ? name : name + " " + allocationMethod.size(prefix + name));
+        }
+        return true;
+    }
+
+    // print the size and blocks of a file
+    boolean stat(String name) {
+        int[] blocks = allocationMethod.blocks(name);
+        if (blocks == null) {
+            out.println("File not found!");
+            return false;
+        }
+        out.println(name + " " + allocationMethod.size(name) + " bytes, " + blocks.length + " blocks " + Arrays.toString(blocks));
+        return true;
+    }
+
+    // keep a copy-on-write snapshot of the disk under a name
+    boolean snapshot(String name) {
+        try {
+            Disk.Snapshot replaced = snapshots.put(name, Disk.snapshot());
+            if (replaced != null) {
+                replaced.release();
+            }
+            return true;
+        } catch (UnsupportedOperationException e) {
+            out.println(e.getMessage());
+            return false;
+        }
+    }
+
+    // go back to a snapshot, the snapshot is kept and can be restored again
+    boolean restore(String name) {
+        Disk.Snapshot snapshot = snapshots.get(name);
+        if (snapshot == null) {
+            out.println("No snapshot named " + name);
+            return false;
+        }
+        Disk.restore(snapshot);
+        allocationMethod.remount();
+        return true;
+    }
+
+    boolean drop(String name) {
+        Disk.Snapshot snapshot = snapshots.remove(name);
+        if (snapshot == null) {
+            out.println("No snapshot named " + name);
+            return false;
+        }
+        snapshot.release();
+        return true;
+    }
+
+    boolean metrics() {
+        out.println(Metrics.dump());
+        return true;
+    }
+
+    // compact the disk, moving at most rate blocks per second (0 for no limit)
+    boolean defragment(String rate) {
+        try {
+            new Defragmenter(allocationMethod, Integer.parseInt(rate)).run();
+            return true;
+        } catch (NumberFormatException e) {
+            out.println("Invalid rate: " + rate);
+            return false;
         }
+    }
+}
 
-        @Override
-        public void deleteFile(String name) {
-            boolean isFound = false;
-            // convert name to bytes
-            byte[] nameBytes = new byte[8];
-            byte fillValue = -1;
-            Arrays.fill(nameBytes, fillValue);
-            byte[] dummy = name.getBytes(StandardCharsets.UTF_8);
-            System.arraycopy(dummy, 0, nameBytes, 0, dummy.length);
-            int indexTable = 0;
-            int dataSize = 0;
-            // Search the FAT and return the file information.
-            for (int i = 0; i < 28; i++) {
-                byte[] parts = Arrays.copyOfRange(Disk.read(0), 15 * i, (15 * (i + 1)));
-                byte[] dummyParts = Arrays.copyOfRange(parts, 0, 8);
-                if (Arrays.equals(nameBytes, dummyParts)) {
-                    dummyParts = Arrays.copyOfRange(parts, 8, 11);
-                    indexTable = bytesToInt(dummyParts);
-                    dummyParts = Arrays.copyOfRange(parts,11,15);
-                    dataSize = bytesToInt(dummyParts);
-                    // update FAT
-                    for(int j = 15 * i; j < (15 * (i + 1)); j++){
-                        Disk.blocks[0][j] = fillValue;
-                    }
-                    isFound = true;
-                    break;
+// benchmark of create, read, copy and delete for each allocation method,
+// run with: java Project3 bench [--blocks N] [--block-size N] [--fat-blocks N] [--fit F] [--iterations N]
+class Benchmark {
+    static final String[] METHODS = {"contiguous", "chained", "fat", "indexed"};
+    // file sizes in blocks
+    static final int[] FILE_BLOCKS = {1, 16, 128};
+    // disk states: share of the data blocks in use, and the largest free hole between used runs (0 = no holes)
+    static final String[] DISKS = {"empty", "90% full", "fragmented", "fragmented 90%"};
+    static final double[] FILL = {0, 0.9, 0.5, 0.9};
+    static final int[] HOLES = {0, 0, 4, 4};
+    static final String[] OPS = {"create", "read", "copy", "delete"};
+
+    final int numBlocks;
+    final int blockSize;
+    final int fatBlocks;
+    final int warmup;
+    final int iterations;
+    final Random random = new Random(42);
+    // the table is printed here, the messages the file system prints are dropped so they do not break it up
+    final PrintStream console = System.out;
+
+    Benchmark(int numBlocks, int blockSize, int fatBlocks, int iterations) {
+        this.numBlocks = numBlocks;
+        this.blockSize = blockSize;
+        this.fatBlocks = fatBlocks;
+        this.iterations = iterations;
+        this.warmup = Math.max(1, iterations / 4);
+    }
+
+    void run() throws IOException {
+        // createFile and copyFile work on files in the current directory
+        Path source = Paths.get("bench.tmp");
+        Path dest = Paths.get("bench.out");
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try (FileChannel out = FileChannel.open(dest, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            console.printf("%-11s %6s  %-15s %-7s %10s %10s %10s %10s%n",
+                    "method", "size", "disk", "op", "ops/s", "mean us", "p50 us", "p99 us");
+            for (String method : METHODS) {
+                for (int blocks : FILE_BLOCKS) {
+                    byte[] data = new byte[blocks * blockSize];
+                    random.nextBytes(data);
+                    Files.write(source, data);
+                    for (int d = 0; d < DISKS.length; d++) {
+                        measure(method, blocks, d, out);
+                    }
                 }
             }
-            if(!isFound){
-                System.out.println("File not found!");
+        } finally {
+            System.setOut(console);
+            Files.deleteIfExists(source);
+            Files.deleteIfExists(dest);
+        }
+    }
+
+    // time each operation on a fresh disk in the given state
+    void measure(String method, int blocks, int disk, FileChannel out) throws IOException {
+        new Disk(numBlocks, blockSize, fatBlocks);
+        FileSystem.AllocationMethod allocationMethod = FileSystem.createAllocationMethod(method);
+        fill(FILL[disk], HOLES[disk]);
+
+        long[][] times = new long[OPS.length][iterations];
+        ByteBuffer buffer = ByteBuffer.allocateDirect(blockSize);
+        for (int i = 0; i < warmup + iterations; i++) {
+            long start = System.nanoTime();
+            if (!allocationMethod.createFile("bench.tmp")) {
+                console.printf("%-11s %6s  %-15s %-7s %10s%n", method, size(blocks), DISKS[disk], "-", "no space");
                 return;
             }
-            int numBlocks = (int) Math.ceil(dataSize / 512.0);
-            byte[] partIndex = new byte[3];
-            System.arraycopy(Disk.read(indexTable), 0, partIndex, 0, partIndex.length);
-            int index = bytesToInt(partIndex);
-            int subIndex = 1;
-            int dummyIndex;
-            // delete file data
-            while(subIndex <= numBlocks){
-                Arrays.fill(Disk.read(index), (byte) 0);
-                // update bitmap
-                Disk.blocks[1][index] = (byte) 0;
-                dummyIndex = subIndex;
-                System.arraycopy(Disk.read(indexTable), subIndex * 3, partIndex, 0, partIndex.length);
-                subIndex++;
-                if(subIndex <= numBlocks) {
-                    index = bytesToInt(partIndex);
+            long created = System.nanoTime();
+            try (FileSystem.BlockChannel channel = allocationMethod.open("bench")) {
+                while (channel.read(buffer.clear()) != -1) {
                 }
-                // update index table
-                Disk.blocks[indexTable][dummyIndex] = (byte) 0;
             }
-            // delete index table from bit map
-            Disk.blocks[1][indexTable] = (byte) 0;
+            long read = System.nanoTime();
+            out.position(0);
+            allocationMethod.export(allocationMethod.lookup("bench"), out);
+            long copied = System.nanoTime();
+            allocationMethod.deleteFile("bench");
+            long deleted = System.nanoTime();
+            if (i >= warmup) {
+                times[0][i - warmup] = created - start;
+                times[1][i - warmup] = read - created;
+                times[2][i - warmup] = copied - read;
+                times[3][i - warmup] = deleted - copied;
+            }
         }
+        for (int op = 0; op < OPS.length; op++) {
+            report(method, blocks, DISKS[disk], OPS[op], times[op]);
+        }
+    }
 
-        @Override
-        public void copyFile(String sourceName, String destName) {
-            boolean isFound = false;
-            // convert name to bytes
-            byte[] nameBytes = new byte[8];
-            byte fillValue = -1;
-            Arrays.fill(nameBytes, fillValue);
-            byte[] dummy = sourceName.getBytes(StandardCharsets.UTF_8);
-            System.arraycopy(dummy, 0, nameBytes, 0, dummy.length);
-            int indexTable = 0;
-            int dataSize = 0;
-            // Search the FAT and return the file information.
-            for (int i = 0; i < 28; i++) {
-                byte[] parts = Arrays.copyOfRange(Disk.read(0), 15 * i, (15 * (i + 1)));
-                byte[] dummyParts = Arrays.copyOfRange(parts, 0, 8);
-                if (Arrays.equals(nameBytes, dummyParts)) {
-                    dummyParts = Arrays.copyOfRange(parts, 8, 11);
-                    indexTable = bytesToInt(dummyParts);
-                    dummyParts = Arrays.copyOfRange(parts,11,15);
-                    dataSize = bytesToInt(dummyParts);
-                    isFound = true;
-                    break;
-                }
-            }
-            if(!isFound){
-                System.out.println("File not found!");
-                return;
+    // mark data blocks used as if other files were stored, leaving random holes between used runs
+    void fill(double level, int maxHole) {
+        int block = Disk.firstDataBlock();
+        int used = (int) (level * (Disk.NUM_BLOCKS - block));
+        while (used > 0 && block < Disk.NUM_BLOCKS) {
+            int hole = maxHole == 0 ? 0 : 1 + random.nextInt(maxHole);
+            int run = maxHole == 0 ? used : Math.max(1, (int) Math.round(hole * level / (1 - level)));
+            for (int i = 0; i < run && used > 0 && block < Disk.NUM_BLOCKS; i++, used--) {
+                Disk.setUsed(block++, true);
             }
+            block += hole;
+        }
+    }
 
-            byte[] copyByte = new byte[dataSize];
-
-            // get the data from disk
-            byte[] partIndex = new byte[3];
-            int numBlocks = (int) Math.ceil(dataSize / 512.0);
-            System.arraycopy(Disk.read(indexTable), 0, partIndex, 0, partIndex.length);
-            int index = bytesToInt(partIndex);
-            int subIndex = 1;
-            int ptr = 0;
-            while(subIndex <= numBlocks){
-                if(dataSize > Disk.BLOCKS_SIZE){
-                    System.arraycopy(Disk.read(index), 0, copyByte, ptr, Disk.BLOCKS_SIZE);
-                    dataSize -= Disk.BLOCKS_SIZE;
-                    ptr += Disk.BLOCKS_SIZE;
-                } else {
-                    System.arraycopy(Disk.read(index), 0, copyByte, ptr, dataSize);
-                }
-                System.arraycopy(Disk.read(indexTable), subIndex * 3, partIndex, 0, partIndex.length);
-                subIndex++;
-                if(subIndex <= numBlocks) {
-                    index = bytesToInt(partIndex);
-                }
-            }
+    void report(String method, int blocks, String disk, String op, long[] times) {
+        Arrays.sort(times);
+        long total = 0;
+        for (long time : times) {
+            total += time;
+        }
+        double mean = total / (double) times.length;
+        console.printf("%-11s %6s  %-15s %-7s %10.0f %10.1f %10.1f %10.1f%n", method, size(blocks), disk, op,
+                1e9 / mean, mean / 1e3, times[times.length / 2] / 1e3, times[Math.min(times.length - 1, times.length * 99 / 100)] / 1e3);
+    }
 
-            Path currentDirectory = Paths.get(System.getProperty("user.dir"));
-            Path filePath = currentDirectory.resolve(destName);
-            if(!Files.isRegularFile(filePath)){
-                System.out.println("Error: The destination file must be in the current directory.");
-                return;
-            }
+    String size(int blocks) {
+        int bytes = blocks * blockSize;
+        return bytes >= 1024 ? bytes / 1024 + "K" : bytes + "B";
+    }
+}
 
-            try(FileOutputStream outputStream = new FileOutputStream(destName)) {
-                outputStream.write(copyByte);
-                System.out.println("File copy successfully at: " + filePath);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+// replays a trace of file operations against each allocation method at full speed, and reports the throughput,
+// latency percentiles, fragmentation over time and the first allocation that failed,
+// run with: java Project3 replay <trace> [--methods m,m] [--blocks N] [--block-size N] [--fat-blocks N] [--fit F]
+// a trace line is <time in ms> create|append|read|delete <name> [bytes], # starts a comment; create and append
+// need the bytes, a read without them reads the whole file, a create of an existing file replaces it and the
+// directories of a new file are made when they are missing
+class Replayer {
+    static final String[] OPS = {"create", "append", "read", "delete"};
+    static final int CREATE = 0;
+    static final int APPEND = 1;
+    static final int READ = 2;
+    // results of an event that moved no data
+    static final long MISSING = -1;
+    static final long FULL = -2;
+    static final long INVALID = -3;
+    // fragmentation samples over the trace
+    static final int SAMPLES = 20;
+    // most bytes handed to a read or write call at once
+    static final int CHUNK = 4 << 20;
+
+    // one line of a trace
+    static final class Event {
+        final long time;
+        final int op;
+        final String name;
+        final long bytes;
+
+        Event(long time, int op, String name, long bytes) {
+            this.time = time;
+            this.op = op;
+            this.name = name;
+            this.bytes = bytes;
         }
+    }
 
-        @Override
-        public void displayFAT(byte[] data) {
-            for(int i = 0; i < 28; i++) {
-                byte[] parts = Arrays.copyOfRange(data, 15 * i, (15 * (i + 1)));
-                if (parts[0] != -1) {
-                    System.out.println(extractName(parts) + " " + extractStartBlock(parts));
-                }
-            }
+    final int numBlocks;
+    final int blockSize;
+    final int fatBlocks;
+    final String[] methods;
+    final List<Event> events = new ArrayList<>();
+    // random bytes written by creates and appends, and where reads go
+    final ByteBuffer data = ByteBuffer.allocateDirect(CHUNK);
+    final ByteBuffer sink = ByteBuffer.allocateDirect(CHUNK);
+
+    Replayer(int numBlocks, int blockSize, int fatBlocks, String[] methods) {
+        this.numBlocks = numBlocks;
+        this.blockSize = blockSize;
+        this.fatBlocks = fatBlocks;
+        this.methods = methods;
+        byte[] random = new byte[CHUNK];
+        new Random(42).nextBytes(random);
+        data.put(random);
+    }
+
+    void run(Path trace) throws IOException {
+        load(trace);
+        if (events.isEmpty()) {
+            System.out.println("No events in " + trace + ".");
+            return;
+        }
+        List<String> results = new ArrayList<>();
+        for (String method : methods) {
+            results.add(replay(method));
+        }
+        System.out.println();
+        System.out.printf("%-11s %10s %10s %10s %10s %12s %8s %10s %9s%n", "method", "events/s", "MB/s", "p99 us",
+                "failures", "first fail", "used %", "free frag", "extents");
+        for (String result : results) {
+            System.out.println(result);
         }
     }
 
-    static int numBlockFree() {
-        int count = 0;
-        for(int i = 0; i < Disk.NUM_BLOCKS; i++){
-            if(Disk.blocks[1][i] == 0){
-                count++;
+    // read the events of a trace, a line that cannot be parsed is reported and left out
+    void load(Path trace) throws IOException {
+        try (BufferedReader in = Files.newBufferedReader(trace)) {
+            String line;
+            for (int number = 1; (line = in.readLine()) != null; number++) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                int op = fields.length < 3 ? -1 : Arrays.asList(OPS).indexOf(fields[1]);
+                boolean sized = op == CREATE || op == APPEND;
+                try {
+                    long bytes = fields.length == 4 ? Long.parseLong(fields[3]) : -1;
+                    if (op == -1 || fields.length > 4 || (sized && bytes < 0) || (!sized && op != READ && bytes != -1)) {
+                        throw new NumberFormatException();
+                    }
+                    events.add(new Event(Long.parseLong(fields[0]), op, fields[2], bytes));
+                } catch (NumberFormatException e) {
+                    System.err.println(trace + ":" + number + ": cannot replay " + line);
+                }
             }
         }
-        return count;
     }
 
-    // find the first free block
-    static int findBlockFree(int blockNeed) {
-        int count = 0;
-        for(int i = 0; i < Disk.NUM_BLOCKS; i++) {
-            if(Disk.blocks[1][i] == 0){
-                count++;
-                if(count == blockNeed) {
-                    return i - blockNeed + 1;
+    // replay the whole trace on a fresh disk, print what was measured and return its summary line
+    String replay(String method) {
+        new Disk(numBlocks, blockSize, fatBlocks);
+        FileSystem.AllocationMethod allocationMethod = FileSystem.createAllocationMethod(method);
+        Metrics.Histogram all = new Metrics.Histogram();
+        Metrics.Histogram[] latency = new Metrics.Histogram[OPS.length];
+        for (int op = 0; op < OPS.length; op++) {
+            latency[op] = new Metrics.Histogram();
+        }
+        int every = Math.max(1, events.size() / SAMPLES);
+        List<String> samples = new ArrayList<>();
+        long bytes = 0;
+        long missing = 0;
+        long invalid = 0;
+        long failures = 0;
+        String firstFailure = null;
+        long firstFailureEvent = -1;
+        // the file system prints a message for every call that fails, they are dropped while the trace runs
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        long sampling = 0;
+        long started = System.nanoTime();
+        try {
+            for (int i = 0; i < events.size(); i++) {
+                Event event = events.get(i);
+                long start = System.nanoTime();
+                long moved = apply(allocationMethod, event);
+                long time = System.nanoTime() - start;
+                latency[event.op].record(time);
+                all.record(time);
+                if (moved >= 0) {
+                    bytes += moved;
+                } else if (moved == MISSING) {
+                    missing++;
+                } else if (moved == INVALID) {
+                    invalid++;
+                } else if (failures++ == 0) {
+                    firstFailureEvent = i + 1;
+                    firstFailure = String.format("event %d at %.1f s, %s %s %d bytes: %s, disk %.1f%% used, %d free blocks, largest free run %d",
+                            i + 1, event.time / 1e3, OPS[event.op], event.name, event.bytes,
+                            allocationMethod.freeFATSlots() == 0 ? "file allocation table full" : "no room for the blocks",
+                            used(), Disk.bitmap.numFree(), Disk.bitmap.largestRun());
+                }
+                // walking the files for a sample is not part of the replay time
+                if ((i + 1) % every == 0 || i + 1 == events.size()) {
+                    long paused = System.nanoTime();
+                    samples.add(String.format("%10d %10.1f %8.1f %10.1f %12d %9.2f", i + 1, event.time / 1e3, used(),
+                            Metrics.freeFragmentation(), Disk.bitmap.largestRun(), Defragmenter.extentsPerFile(allocationMethod)));
+                    sampling += System.nanoTime() - paused;
                 }
             }
+        } finally {
+            System.setOut(console);
+        }
+        double seconds = (System.nanoTime() - started - sampling) / 1e9;
+        long span = events.get(events.size() - 1).time - events.get(0).time;
+
+        System.out.println("== " + method);
+        System.out.printf("%d events in %.2f s: %.0f events/s, %.1f MB/s; the trace spans %.1f s%n",
+                events.size(), seconds, events.size() / seconds, bytes / seconds / (1 << 20), span / 1e3);
+        System.out.printf("%-7s %8s %10s %10s %10s %10s %10s %10s%n", "op", "count", "mean us", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us");
+        for (int op = 0; op < OPS.length; op++) {
+            Metrics.Histogram histogram = latency[op];
+            if (histogram.count() > 0) {
+                System.out.printf("%-7s %8d %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f%n", OPS[op], histogram.count(), histogram.mean() / 1e3,
+                        histogram.percentile(50) / 1e3, histogram.percentile(90) / 1e3, histogram.percentile(99) / 1e3,
+                        histogram.percentile(99.9) / 1e3, histogram.max() / 1e3);
+            }
+        }
+        System.out.println("missing files " + missing + ", invalid names " + invalid + ", failed allocations " + failures);
+        System.out.println(firstFailure == null ? "no allocation failed" : "first allocation failure: " + firstFailure);
+        System.out.println("fragmentation over time:");
+        System.out.printf("%10s %10s %8s %10s %12s %9s%n", "events", "time s", "used %", "free frag", "largest run", "extents");
+        for (String sample : samples) {
+            System.out.println(sample);
         }
-        return -1;
+        System.out.println();
+        return String.format("%-11s %10.0f %10.1f %10.1f %10d %12s %8.1f %9.1f%% %9.2f", method, events.size() / seconds,
+                bytes / seconds / (1 << 20), all.percentile(99) / 1e3, failures, firstFailureEvent == -1 ? "-" : "event " + firstFailureEvent,
+                used(), Metrics.freeFragmentation(), Defragmenter.extentsPerFile(allocationMethod));
     }
 
-    // extract file ending block from next 3 bytes
-    static String extractEndBlock(byte[] data){
-        byte fillSpace = 32;
-        byte[] endBlock;
-        endBlock = Arrays.copyOfRange(data, 11, 14);
-        for(int i = 0; i < endBlock.length; i++){
-            if(endBlock[i] == -1){
-                endBlock[i] = fillSpace;
+    // run one event, returns the bytes it moved or MISSING, FULL or INVALID
+    long apply(FileSystem.AllocationMethod allocationMethod, Event event) {
+        if (!FileSystem.DirectoryTree.isValid(event.name)) {
+            return INVALID;
+        }
+        try {
+            switch (event.op) {
+                case CREATE:
+                    if (allocationMethod.lookup(event.name) != -1) {
+                        allocationMethod.deleteFile(event.name);
+                    } else if (allocationMethod.directory.find(event.name, FileSystem.DirectoryTree.ANY) != -1) {
+                        // a directory has the name
+                        return INVALID;
+                    }
+                    makeParents(allocationMethod, event.name);
+                    if (!allocationMethod.createEmpty(event.name)) {
+                        return FULL;
+                    }
+                    return write(allocationMethod, event.name, 0, event.bytes);
+                case APPEND:
+                    long size = allocationMethod.size(event.name);
+                    return size == -1 ? MISSING : write(allocationMethod, event.name, size, event.bytes);
+                case READ:
+                    return read(allocationMethod, event.name, event.bytes);
+                default:
+                    if (allocationMethod.lookup(event.name) == -1) {
+                        return MISSING;
+                    }
+                    allocationMethod.deleteFile(event.name);
+                    return 0;
             }
+        } catch (FileNotFoundException e) {
+            return MISSING;
+        } catch (IOException e) {
+            // a write past the end of a file fails only when it cannot grow
+            return FULL;
         }
-        return new String(endBlock, StandardCharsets.UTF_8);
     }
 
-    // find the first free space in file allocation table
-    static int findFATFree(int offset) {
-        for(int i = 0; i < Disk.NUM_BLOCKS; i+= offset) {
-            if(Disk.blocks[0][i] == -1){
-                return i;
+    // make the directories above a file that do not exist yet
+    void makeParents(FileSystem.AllocationMethod allocationMethod, String name) {
+        for (int slash = name.indexOf('/', 1); slash != -1; slash = name.indexOf('/', slash + 1)) {
+            String parent = name.substring(0, slash);
+            if (allocationMethod.directory.find(parent, FileSystem.DirectoryTree.DIRECTORY) == -1) {
+                allocationMethod.makeDirectory(parent);
             }
         }
-        return -1;
     }
 
-    // convert file to bytes
-    static byte[] toBytes(String fileName) throws IOException {
-        Path path = Paths.get(fileName);
-        return Files.readAllBytes(path);
+    // write bytes of random data at offset, a chunk at a time
+    long write(FileSystem.AllocationMethod allocationMethod, String name, long offset, long bytes) throws IOException {
+        for (long done = 0; done < bytes; ) {
+            data.clear().limit((int) Math.min(CHUNK, bytes - done));
+            done += allocationMethod.write(name, offset + done, data);
+        }
+        return bytes;
     }
 
-    // convert bytes to int
-    static int bytesToInt(byte[] byteArray) {
-        byte[] dummy = new byte[byteArray.length];
-        for(int i = 0; i < byteArray.length; i++){
-            if(byteArray[i] != -1){
-                dummy[i] = byteArray[i];
+    // read up to bytes from the start of a file, all of it when bytes is -1
+    long read(FileSystem.AllocationMethod allocationMethod, String name, long bytes) throws IOException {
+        long size = allocationMethod.size(name);
+        if (size == -1) {
+            return MISSING;
+        }
+        long length = bytes == -1 ? size : Math.min(bytes, size);
+        long done = 0;
+        while (done < length) {
+            int count = allocationMethod.read(name, done, (int) Math.min(CHUNK, length - done), sink.clear());
+            if (count == -1) {
+                break;
             }
+            done += count;
         }
-        return Integer.parseInt(new String(dummy, StandardCharsets.UTF_8).trim());
+        return done;
     }
 
-    // extract file name from 8 first bytes
-    static String extractName(byte[] data){
-        byte fillSpace = 32;
-        byte[] name = new byte[8];
-        Arrays.fill(name, fillSpace);
-        for(int i = 0; i < name.length; i++){
-            if(data[i] != -1){
-                name[i] = data[i];
-            }
+    // share of the data blocks in use, in percent
+    static double used() {
+        int blocks = Disk.NUM_BLOCKS - Disk.firstDataBlock();
+        return 100.0 * (blocks - Disk.bitmap.numFree()) / blocks;
+    }
+}
+
+// runs clients on several threads against each allocation method and checks every read, run with:
+// java Project3 stress [--methods m,m] [--blocks N] [--block-size N] [--fat-blocks N] [--fit F] [--iterations N]
+// the threads create, write, read and delete files they share, spelled with and without a leading slash, and
+// files only one of them uses; a version of a file is written in one call, so a read sees one whole version,
+// and at the end no block may belong to two files
+class Stress {
+    // files every thread uses and files each thread keeps to itself
+    static final int SHARED = 4;
+    static final int PRIVATE = 4;
+    // bytes at the start of a version that hold its seed
+    static final int SEED = 8;
+    // errors printed for each method, the rest are only counted
+    static final int REPORTED = 10;
+    // blocks of the file the defragmenter check scatters
+    static final int SCATTERED = 8;
+
+    final int numBlocks;
+    final int blockSize;
+    final int fatBlocks;
+    final int iterations;
+    final String[] methods;
+    final int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+    Stress(int numBlocks, int blockSize, int fatBlocks, int iterations, String[] methods) {
+        this.numBlocks = numBlocks;
+        this.blockSize = blockSize;
+        this.fatBlocks = fatBlocks;
+        this.iterations = iterations;
+        this.methods = methods;
+    }
+
+    // returns false when a check failed
+    boolean run() throws InterruptedException {
+        System.out.printf("%-11s %8s %10s %10s %8s%n", "method", "threads", "ops", "ops/s", "errors");
+        boolean passed = true;
+        for (String method : methods) {
+            passed &= stress(method);
         }
-        return new String(name, StandardCharsets.UTF_8);
+        System.out.println(passed ? "stress passed" : "stress failed");
+        return passed;
     }
 
-    // extract file starting block from next 3 bytes
-    static String extractStartBlock(byte[] data){
-        byte fillSpace = 32;
-        byte[] startBlock;
-        startBlock = Arrays.copyOfRange(data, 8, 11);
-        for(int i = 0; i < startBlock.length; i++){
-            if(startBlock[i] == -1){
-                startBlock[i] = fillSpace;
+    // every thread runs its operations on a fresh disk, then the blocks of the files left are checked
+    boolean stress(String method) throws InterruptedException {
+        new Disk(numBlocks, blockSize, fatBlocks);
+        FileSystem.AllocationMethod allocationMethod = FileSystem.createAllocationMethod(method);
+        List<String> errors = Collections.synchronizedList(new ArrayList<>());
+        // the file system prints a message for every call that fails, they are dropped while the threads run
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        long started = System.nanoTime();
+        try {
+            List<Thread> clients = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int client = t;
+                clients.add(new Thread(() -> client(allocationMethod, client, errors)));
+            }
+            for (Thread thread : clients) {
+                thread.start();
+            }
+            for (Thread thread : clients) {
+                thread.join();
             }
+        } finally {
+            System.setOut(console);
         }
-        return new String(startBlock, StandardCharsets.UTF_8);
+        double seconds = (System.nanoTime() - started) / 1e9;
+        checkBlocks(allocationMethod, errors);
+        checkDefragment(method, errors);
+        System.out.printf("%-11s %8d %10d %10.0f %8d%n", method, threads, (long) threads * iterations,
+                threads * iterations / seconds, errors.size());
+        for (String error : errors.subList(0, Math.min(REPORTED, errors.size()))) {
+            System.out.println("  " + error);
+        }
+        return errors.isEmpty();
     }
 
-    // Factory method to create AllocationMethod based on user input
-    public static AllocationMethod createAllocationMethod(String method) {
-        switch (method.toLowerCase()) {
-            case "contiguous":
-                return new Contiguous();
-            case "chained":
-                return new Chained();
-            case "indexed":
-                return new Indexed();
-            default:
-                throw new IllegalArgumentException("Invalid allocation method: " + method);
+    // one thread: random operations on the shared files and on its own, whose contents it knows
+    void client(FileSystem.AllocationMethod allocationMethod, int client, List<String> errors) {
+        Random random = new Random(client);
+        ByteBuffer buffer = ByteBuffer.allocate(length(SHARED + PRIVATE - 1));
+        long[] own = new long[PRIVATE];
+        Arrays.fill(own, -1);
+        for (int i = 0; i < iterations; i++) {
+            boolean shared = random.nextBoolean();
+            int k = random.nextInt(shared ? SHARED : PRIVATE);
+            String name = (random.nextBoolean() ? "/" : "") + (shared ? "s" + k : "p" + client + "k" + k);
+            // a shared file keeps one length, so a version always covers the one before it
+            long seed = (random.nextLong() >>> 1) / (SHARED + PRIVATE) * (SHARED + PRIVATE) + (shared ? k : SHARED + random.nextInt(PRIVATE));
+            int length = length(seed);
+            try {
+                switch (random.nextInt(4)) {
+                    case 0:
+                        // create, or write a new version over the old one
+                        if (allocationMethod.lookup(name) == -1 && !allocationMethod.createEmpty(name)) {
+                            break;
+                        }
+                        if (!shared && own[k] != -1 && length < length(own[k])) {
+                            // a shorter version would leave the end of the old one
+                            allocationMethod.deleteFile(name);
+                            own[k] = -1;
+                            break;
+                        }
+                        allocationMethod.write(name, 0, version(buffer, seed, length));
+                        if (!shared) {
+                            own[k] = seed;
+                        }
+                        break;
+                    case 1:
+                        allocationMethod.deleteFile(name);
+                        if (!shared) {
+                            own[k] = -1;
+                        }
+                        break;
+                    default:
+                        check(allocationMethod, name, shared ? -2 : own[k], buffer, errors);
+                        break;
+                }
+            } catch (FileNotFoundException e) {
+                // a shared file deleted by another thread
+                if (!shared) {
+                    errors.add("client " + client + ": " + name + " is missing");
+                }
+            } catch (IOException | RuntimeException e) {
+                errors.add("client " + client + ": " + name + ": " + e);
+            }
         }
     }
-}
-
-class UserInterface {
 
-    FileSystem.AllocationMethod allocationMethod;
-    
-    public UserInterface(String allocationType) {
-        // Create the corresponding AllocationMethod based on user input
-        this.allocationMethod = FileSystem.createAllocationMethod(allocationType);
+    // read a whole file and check it holds one version; seed is the version expected, -1 for no file,
+    // -2 for any version or none
+    void check(FileSystem.AllocationMethod allocationMethod, String name, long seed, ByteBuffer buffer, List<String> errors)
+            throws FileNotFoundException {
+        long size = allocationMethod.size(name);
+        if (seed == -1 || (seed == -2 && size == -1)) {
+            if (size != -1) {
+                errors.add(name + " exists after it was deleted");
+            }
+            return;
+        }
+        int count = allocationMethod.read(name, 0, buffer.capacity(), buffer.clear());
+        if (count == -1) {
+            // a shared file created but not written yet
+            if (seed != -2) {
+                errors.add(name + " is empty");
+            }
+            return;
+        }
+        buffer.flip();
+        long found = buffer.getLong(0);
+        if (seed != -2 && found != seed) {
+            errors.add(name + " holds version " + found + " instead of " + seed);
+        } else if (count != length(found)) {
+            errors.add(name + " has " + count + " bytes, version " + found + " has " + length(found));
+        } else {
+            for (int i = SEED; i < count; i++) {
+                if (buffer.get(i) != pattern(found, i)) {
+                    errors.add(name + " version " + found + " differs at byte " + i);
+                    return;
+                }
+            }
+        }
     }
 
-    // check the length of file name
-    boolean isValid(String name){
-        return name.length() <= 8 && name.equals(name.toLowerCase());
+    // no block may be held by two files or be free while a file holds it
+    void checkBlocks(FileSystem.AllocationMethod allocationMethod, List<String> errors) {
+        Map<Integer, String> owners = new HashMap<>();
+        for (String name : allocationMethod.list()) {
+            for (int block : allocationMethod.heldBlocks(allocationMethod.lookup(name))) {
+                String owner = owners.put(block, name);
+                if (owner != null) {
+                    errors.add("block " + block + " is held by " + owner + " and " + name);
+                } else if (Disk.isFree(block)) {
+                    errors.add("block " + block + " of " + name + " is free");
+                }
+            }
+        }
     }
 
-    // display file
-    void displayFile(String name){
-        allocationMethod.getData(name);
+    // on a fresh disk, a file whose blocks alternate with those of other files, with no hole below it,
+    // has to be one extent after it is defragmented
+    void checkDefragment(String method, List<String> errors) {
+        new Disk(numBlocks, blockSize, fatBlocks);
+        FileSystem.AllocationMethod allocationMethod = FileSystem.createAllocationMethod(method);
+        ByteBuffer block = ByteBuffer.allocate(allocationMethod.blockData());
+        try {
+            allocationMethod.createEmpty("scattered");
+            for (int k = 0; k < SCATTERED; k++) {
+                allocationMethod.write("scattered", (long) k * block.capacity(), block.clear());
+                allocationMethod.createEmpty("between" + k);
+                allocationMethod.write("between" + k, 0, block.clear());
+            }
+        } catch (IOException e) {
+            errors.add("defragment: " + e);
+            return;
+        }
+        allocationMethod.defragment("scattered");
+        int[] blocks = allocationMethod.blocks("scattered");
+        int extents = 1;
+        for (int k = 1; k < blocks.length; k++) {
+            if (blocks[k] != blocks[k - 1] + 1) {
+                extents++;
+            }
+        }
+        if (blocks.length != SCATTERED || extents != 1) {
+            errors.add("a scattered file of " + blocks.length + " blocks is in " + extents + " extents after defragmenting");
+        }
     }
 
-    // display the free space bitmap
-    void displayBitmap(){
-        allocationMethod.displayBitmap();
+    // bytes in a version with a seed, a few blocks and not a whole number of them; a version of the shared
+    // file k has a seed of k modulo SHARED + PRIVATE, a version of a private file one past the shared ones
+    int length(long seed) {
+        return (int) (1 + seed % (SHARED + PRIVATE)) * blockSize * 3 / 2 + SEED;
     }
 
-    // display a disk block
-    void displayBlock(int blockNum){
-        allocationMethod.displayBlock(blockNum);
+    // fill buffer with a version: its seed, then bytes that follow from it
+    ByteBuffer version(ByteBuffer buffer, long seed, int length) {
+        buffer.clear().limit(length);
+        buffer.putLong(0, seed);
+        for (int i = SEED; i < length; i++) {
+            buffer.put(i, pattern(seed, i));
+        }
+        return buffer;
     }
 
-    // display the file allocation table
-    void displayFAT(){
-        allocationMethod.displayFAT(Disk.blocks[0]);
+    static byte pattern(long seed, int i) {
+        return (byte) ((seed >>> (i % 7 * 8)) + i);
     }
+}
 
-    public void showMenu(){
-        Scanner in = new Scanner(System.in);
-        int userChoice = 0;
-        while(userChoice != 8) {
-            System.out.println();
-            System.out.println(
-                "1) Display a file\n" +
-                "2) Display the file table\n" +
-                "3) Display the free space bitmap\n" +
-                "4) Display a disk block\n" +
-                "5) Copy a file from the simulation to a file on the real system\n" +
-                "6) Copy a file from the real system to a file in the simulation\n" +
-                "7) Delete a file\n" +
-                "8) Exit"
-            );
-            System.out.print("Choice: ");
-            userChoice = in.nextInt();
-
-            // perform action based on user choice
-            switch (userChoice){
-                case 1:
-                    String fileName;
-                    in.nextLine();
-                    System.out.print("File name: ");
-                    fileName = in.nextLine();
-                    if(isValid(fileName)){
-                        displayFile(fileName);
-                    } else {
-                        System.out.println("File names should be up to 8 characters.  Names should only have lowercase letters.");
-                    }
+public class Project3 {
+    public static void main(String[] args) throws IOException {
+        String allocationType = args[0];
+        boolean bench = allocationType.equals("bench");
+        boolean replay = allocationType.equals("replay");
+        boolean stress = allocationType.equals("stress");
 
+        // optional arguments: the disk geometry and a disk image that persists between runs
+        int numBlocks = bench || replay || stress ? 16384 : 256;
+        int blockSize = 512;
+        int fatBlocks = replay || stress ? 64 : 1;
+        int iterations = 1000;
+        Path image = null;
+        String batch = null;
+        int cacheBlocks = 0;
+        boolean journal = false;
+        int metricsPeriod = 0;
+        boolean offHeap = false;
+        String[] methods = Benchmark.METHODS;
+        for(int i = 1; i < args.length; i++){
+            switch (args[i]){
+                case "--blocks":
+                    numBlocks = Integer.parseInt(args[++i]);
                     break;
-
-                case 2:
-                    displayFAT();
+                case "--block-size":
+                    blockSize = Integer.parseInt(args[++i]);
                     break;
-
-                case 3:
-                    displayBitmap();
+                case "--fat-blocks":
+                    fatBlocks = Integer.parseInt(args[++i]);
                     break;
-
-                case 4:
-                    System.out.print("Block Number: ");
-                    int blockNum = in.nextInt();
-                    displayBlock(blockNum);
+                case "--fit":
+                    Disk.Bitmap.fit = Disk.Fit.valueOf(args[++i].toUpperCase());
                     break;
-
-                case 5:
-                    String sourceName;
-                    String destName;
-                    in.nextLine();
-                    System.out.print("Copy from: ");
-                    sourceName = in.nextLine();
-                    System.out.print("Copy to: ");
-                    destName = in.nextLine();
-                    if(isValid(sourceName)){
-                        allocationMethod.copyFile(sourceName, destName);
-                    } else {
-                        System.out.println("File names should be up to 8 characters.  Names should only have lowercase letters.");
-                    }
+                case "--iterations":
+                    iterations = Integer.parseInt(args[++i]);
                     break;
-
-                case 6:
-                    String sysFileName;
-                    in.nextLine();
-                    System.out.print("Copy from: ");
-                    sysFileName = in.nextLine();
-                    // Split the text based on ". "
-                    String[] fileNameparts = sysFileName.split("\\.");
-                    if(isValid(fileNameparts[0])) {
-                        if(allocationMethod.createFile(sysFileName)){
-                            System.out.println("Copy to: " + fileNameparts[0]);
-                            System.out.println("File " + sysFileName + " copied.");
-                        }
-                    } else {
-                        System.out.println("File names should be up to 8 characters.  Names should only have lowercase letters.");
-                    }
+                case "--batch":
+                    batch = args[++i];
                     break;
-
-                case 7:
-                    String sFileName;
-                    in.nextLine();
-                    System.out.print("File name: ");
-                    sFileName = in.nextLine();
-                    if(isValid(sFileName)){
-                        allocationMethod.deleteFile(sFileName);
-                    } else {
-                        System.out.println("File names should be up to 8 characters.  Names should only have lowercase letters.");
-                    }
+                case "--cache":
+                    cacheBlocks = Integer.parseInt(args[++i]);
                     break;
-
-                case 8:
+                case "--journal":
+                    journal = true;
+                    break;
+                case "--off-heap":
+                    offHeap = true;
+                    break;
+                case "--metrics":
+                    metricsPeriod = Integer.parseInt(args[++i]);
+                    break;
+                case "--methods":
+                    methods = args[++i].split(",");
                     break;
-
                 default:
-                    System.err.println("Input is not recognize.");
+                    image = Paths.get(args[i]);
                     break;
             }
+        }
 
+        // the benchmark builds its own in-memory disks
+        if(bench){
+            new Benchmark(numBlocks, blockSize, fatBlocks, iterations).run();
+            return;
         }
-    }
-}
 
-public class Project3 {
-    public static void main(String[] args) throws IOException {
-        String allocationType = args[0];
+        // a trace is replayed on in-memory disks, it is named where an image would be
+        if(replay){
+            if(image == null){
+                System.err.println("Usage: java Project3 replay <trace> [--methods m,m] [--blocks N] [--block-size N] [--fat-blocks N] [--fit F]");
+                return;
+            }
+            new Replayer(numBlocks, blockSize, fatBlocks, methods).run(image);
+            return;
+        }
+
+        // the stress test also builds its own disks, and exits with 1 when a check failed
+        if(stress){
+            try{
+                if(!new Stress(numBlocks, blockSize, fatBlocks, iterations, methods).run()){
+                    System.exit(1);
+                }
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+
+        Disk disk = image != null ? new Disk(image, numBlocks, blockSize, fatBlocks, cacheBlocks, journal) : new Disk(numBlocks, blockSize, fatBlocks, offHeap);
 
-        Disk disk = new Disk();
+        // metrics are always published over JMX, --metrics N also prints them every N seconds
+        Metrics.register();
+        if(metricsPeriod > 0){
+            Metrics.dumpEvery(metricsPeriod);
+        }
+
+        // run a command file, or standard input for "-", instead of the menu
+        if(batch != null){
+            PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+            try(BufferedReader in = batch.equals("-") ? new BufferedReader(new InputStreamReader(System.in))
+                    : Files.newBufferedReader(Paths.get(batch))){
+                new Batch(FileSystem.createAllocationMethod(allocationType), out).run(in);
+            }
+            Disk.flush();
+            return;
+        }
 
         UserInterface UI = new UserInterface(allocationType);
         UI.showMenu();